@@ -3,6 +3,7 @@ package ru.spbstu.timofeev;
 import ru.spbstu.pipeline.RC;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -27,37 +28,40 @@ public class Main {
         return logger;
     }
 
-    private static void printResult(RC retCode) {
+    /*
+     the status goes to stderr when stdout carries the pipeline output
+     */
+    private static void printResult(RC retCode, PrintStream status) {
         switch (retCode){
             case CODE_CONFIG_GRAMMAR_ERROR:
-                System.out.println("Grammar error, see details in " + logFileName);
+                status.println("Grammar error, see details in " + logFileName);
                 break;
             case CODE_CONFIG_SEMANTIC_ERROR:
-                System.out.println("Semantic error, see details in " + logFileName);
+                status.println("Semantic error, see details in " + logFileName);
                 break;
             case CODE_FAILED_PIPELINE_CONSTRUCTION:
-                System.out.println("Failed to construct a pipeline, see details in " + logFileName);
+                status.println("Failed to construct a pipeline, see details in " + logFileName);
                 break;
             case CODE_FAILED_TO_READ:
-                System.out.println("Reading error, see details in " + logFileName);
+                status.println("Reading error, see details in " + logFileName);
                 break;
             case CODE_FAILED_TO_WRITE:
-                System.out.println("Writing error, see details in " + logFileName);
+                status.println("Writing error, see details in " + logFileName);
                 break;
             case CODE_INVALID_ARGUMENT:
-                System.out.println("Invalid argument received, see details in " + logFileName);
+                status.println("Invalid argument received, see details in " + logFileName);
                 break;
             case CODE_INVALID_INPUT_STREAM:
-                System.out.println("Got invalid input stream, see details in " + logFileName);
+                status.println("Got invalid input stream, see details in " + logFileName);
                 break;
             case CODE_INVALID_OUTPUT_STREAM:
-                System.out.println("Got invalid output stream, see details in " + logFileName);
+                status.println("Got invalid output stream, see details in " + logFileName);
                 break;
             case CODE_SUCCESS:
-                System.out.println("Done");
+                status.println("Done");
                 break;
             default:
-                System.out.println("Unknown returning code " + retCode + ", see details in " + logFileName);
+                status.println("Unknown returning code " + retCode + ", see details in " + logFileName);
                 break;
         }
     }
@@ -71,7 +75,7 @@ public class Main {
 
         if (Args == null || Args.length != 1) {
             logger.severe("Expected one command-line argument");
-            printResult(RC.CODE_INVALID_ARGUMENT);
+            printResult(RC.CODE_INVALID_ARGUMENT, System.out);
             return;
         }
         String configFileName = Args[0];
@@ -79,18 +83,20 @@ public class Main {
         PipelineManager manager = PipelineManager.createInstance(configFileName, logger);
         if (manager == null) {
             logger.severe("Failed to create a pipeline manager");
-            printResult(RC.CODE_FAILED_PIPELINE_CONSTRUCTION);
+            printResult(RC.CODE_FAILED_PIPELINE_CONSTRUCTION, System.out);
             return;
         }
 
+        PrintStream status = manager.writesToStandardOutput() ? System.err : System.out;
+
         RC retCode = manager.run();
         if (retCode != RC.CODE_SUCCESS) {
             logger.severe("Pipeline execution failed");
-            printResult(retCode);
+            printResult(retCode, status);
             return;
         }
 
         logger.info("DONE");
-        printResult(retCode);
+        printResult(retCode, status);
     }
 }
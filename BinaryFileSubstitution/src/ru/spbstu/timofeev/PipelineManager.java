@@ -3,11 +3,20 @@ package ru.spbstu.timofeev;
 import ru.spbstu.pipeline.*;
 import ru.spbstu.timofeev.config.BaseSemantics;
 import ru.spbstu.timofeev.config.Config;
+import ru.spbstu.timofeev.utils.BufferPool;
 import ru.spbstu.timofeev.utils.Pair;
 import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
+import ru.spbstu.timofeev.utils.SpscRing;
+import ru.spbstu.timofeev.workers.FileReader;
+import ru.spbstu.timofeev.workers.FileWriter;
+import ru.spbstu.timofeev.workers.SubstitutionTable;
+import ru.spbstu.timofeev.workers.SubstitutionTableCache;
+import ru.spbstu.timofeev.workers.Substitutor;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.logging.Logger;
 
 class ManagerGrammar extends PipelineBaseGrammar {
@@ -33,6 +42,9 @@ class ManagerSemantics extends BaseSemantics {
     private static final String workersDelimiter = ";";
     private static final String workersInnerDelimiter = ",";
 
+    /* input_file or output_file naming the standard input or output */
+    static final String STANDARD_STREAM = "-";
+
     public ManagerSemantics(Logger logger) {
         super(logger);
     }
@@ -50,7 +62,7 @@ class ManagerSemantics extends BaseSemantics {
         assert fieldName != null && fieldValue != null;
 
         if (fieldName.equals(Fields.INPUT_FILE.toString())) {
-            if (validateExistingFile(fieldValue)) {
+            if (fieldValue.equals(STANDARD_STREAM) || validateExistingFile(fieldValue)) {
                 return true;
             }
             getLogger().warning("Invalid input file: " + fieldValue);
@@ -62,12 +74,59 @@ class ManagerSemantics extends BaseSemantics {
         else if (fieldName.equals(Fields.PIPELINE_STRUCTURE.toString())) {
             return validatePipelineStructure(fieldValue);
         }
+        else if (fieldName.equals(Fields.BUFFER_POOL_BUDGET.toString())) {
+            if (parseSize(fieldValue) != null) {
+                return true;
+            }
+            getLogger().warning("Invalid buffer pool budget: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.BUFFER_POOL_POLICY.toString())) {
+            if (parsePolicy(fieldValue) != null) {
+                return true;
+            }
+            getLogger().warning("Unknown buffer pool policy: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.THREAD_PER_STAGE.toString())) {
+            return validateBoolean(fieldValue);
+        }
+        else if (fieldName.equals(Fields.STAGE_QUEUE_DEPTH.toString())) {
+            return validatePositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.STAGE_WAIT.toString())) {
+            if (parseWait(fieldValue) != null) {
+                return true;
+            }
+            getLogger().warning("Unknown stage wait strategy: " + fieldValue);
+            return false;
+        }
         else {
             getLogger().warning("Unknown field validation queried: " + fieldName);
         }
         return true;
     }
 
+    public static BufferPool.Policy parsePolicy(String value) {
+        if (value.equals("block")) {
+            return BufferPool.Policy.BLOCK;
+        }
+        else if (value.equals("fail")) {
+            return BufferPool.Policy.FAIL;
+        }
+        return null;
+    }
+
+    public static SpscRing.Wait parseWait(String value) {
+        if (value.equals("spin")) {
+            return SpscRing.Wait.SPIN;
+        }
+        else if (value.equals("park")) {
+            return SpscRing.Wait.PARK;
+        }
+        return null;
+    }
+
     private boolean validatePipelineStructure(String pStruct) {
         String[] workerStrings = pStruct.split(workersDelimiter());
 
@@ -145,7 +204,12 @@ class ManagerSemantics extends BaseSemantics {
     public enum Fields {
         INPUT_FILE("input_file"),
         OUTPUT_FILE("output_file"),
-        PIPELINE_STRUCTURE("pipeline");
+        PIPELINE_STRUCTURE("pipeline"),
+        BUFFER_POOL_BUDGET("buffer_pool_budget"),
+        BUFFER_POOL_POLICY("buffer_pool_policy"),
+        THREAD_PER_STAGE("thread_per_stage"),
+        STAGE_QUEUE_DEPTH("stage_queue_depth"),
+        STAGE_WAIT("stage_wait");
 
         private final String name;
 
@@ -166,6 +230,16 @@ public class PipelineManager implements IConfigurable {
 
     private Pair<String ,String>[] workerTemplates;
 
+    private static final int DEFAULT_STAGE_QUEUE_DEPTH = 4;
+
+    /*
+     in the thread-per-stage mode every step runs on its own thread
+     and the steps are joined by StageLinks
+     */
+    private boolean threadPerStage;
+    private int stageQueueDepth;
+    private SpscRing.Wait stageWait;
+
     private final Logger logger;
 
     private PipelineManager(Logger logger) {
@@ -196,6 +270,10 @@ public class PipelineManager implements IConfigurable {
         return RC.CODE_SUCCESS;
     }
 
+    public boolean writesToStandardOutput() {
+        return outputFileName.equals(ManagerSemantics.STANDARD_STREAM);
+    }
+
     public RC run() {
         Pair<Pair<FileInputStream, FileOutputStream>, RC> res = openStreams(inputFileName, outputFileName);
         if (res.second != RC.CODE_SUCCESS) {
@@ -214,18 +292,58 @@ public class PipelineManager implements IConfigurable {
             return resWorkers.second;
         }
 
-        IPipelineStep[] workers = resWorkers.first;
+        SubstitutionTableCache tableCache = SubstitutionTableCache.shared();
+        logger.info("Substitution table cache: " + tableCache.getHits() + " hits, " +
+                tableCache.getMisses() + " misses, " + tableCache.size() + " tables");
+
+        IPipelineStep[] workers = fuseSubstitutors(resWorkers.first);
+
+        if (isCopyThrough(workers)) {
+            logger.info("Pipeline does not change the bytes, copying the input through");
+            RC retCode = ((FileWriter) workers[1]).transferFrom(inputStream.getChannel());
+
+            closeWorkers(resWorkers.first);
+            closeStream(inputStream);
+            closeStream(outputStream);
+
+            logger.info("Buffer pool: " + BufferPool.shared().getStatistics());
+
+            if (retCode != RC.CODE_SUCCESS) {
+                logger.severe("Failed to execute pipeline");
+            }
+            return retCode;
+        }
+
+        Pair<RandomAccessFile, RC> resMapped = prepareMappedOutput(workers);
+        if (resMapped.second != RC.CODE_SUCCESS) {
+            closeWorkers(resWorkers.first);
+            closeStream(inputStream);
+            closeStream(outputStream);
+            logger.severe("Failed to prepare the mapped output");
+            return resMapped.second;
+        }
+        RandomAccessFile mappedOutput = resMapped.first;
 
-        RC retCode = putWorkersInChain(workers);
+        IPipelineStep[] chain = threadPerStage ? insertStageLinks(workers) : workers;
+
+        RC retCode = putWorkersInChain(chain);
         if (retCode != RC.CODE_SUCCESS) {
+            closeWorkers(resWorkers.first);
+            closeStream(inputStream);
+            closeStream(outputStream);
+            closeStream(mappedOutput);
             logger.severe("Unable to put workers into a chain");
             return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
         }
 
-        retCode = ((IConsumer)workers[0]).execute();
+        retCode = threadPerStage ? executeStaged(chain) : ((IConsumer)workers[0]).execute();
 
+        closeWorkers(resWorkers.first);
         closeStream(inputStream);
         closeStream(outputStream);
+        closeStream(mappedOutput);
+
+        logger.info("Buffer pool: " + BufferPool.shared().getStatistics());
 
         if (retCode != RC.CODE_SUCCESS) {
             logger.severe("Failed to execute pipeline");
@@ -243,6 +361,21 @@ public class PipelineManager implements IConfigurable {
 
         assert (inputFileName != null && outputFileName != null && pStruct != null);
 
+        String poolBudget = cfg.getParameter(ManagerSemantics.Fields.BUFFER_POOL_BUDGET.toString());
+        String poolPolicy = cfg.getParameter(ManagerSemantics.Fields.BUFFER_POOL_POLICY.toString());
+
+        long budget = poolBudget != null ? ManagerSemantics.parseSize(poolBudget) : BufferPool.DEFAULT_BUDGET;
+        BufferPool.Policy policy = poolPolicy != null ? ManagerSemantics.parsePolicy(poolPolicy) : BufferPool.Policy.BLOCK;
+
+        BufferPool.shared().configure(budget, policy);
+
+        String threadPerStage = cfg.getParameter(ManagerSemantics.Fields.THREAD_PER_STAGE.toString());
+        String stageQueueDepth = cfg.getParameter(ManagerSemantics.Fields.STAGE_QUEUE_DEPTH.toString());
+        String stageWait = cfg.getParameter(ManagerSemantics.Fields.STAGE_WAIT.toString());
+        this.threadPerStage = Boolean.parseBoolean(threadPerStage);
+        this.stageQueueDepth = stageQueueDepth != null ? Integer.parseInt(stageQueueDepth) : DEFAULT_STAGE_QUEUE_DEPTH;
+        this.stageWait = stageWait != null ? ManagerSemantics.parseWait(stageWait) : SpscRing.Wait.PARK;
+
         this.workerTemplates = getWorkerTemplates(pStruct);
         this.inputFileName = inputFileName;
         this.outputFileName = outputFileName;
@@ -276,13 +409,15 @@ public class PipelineManager implements IConfigurable {
         FileInputStream inputStream;
         FileOutputStream outputStream;
         try {
-            inputStream = new FileInputStream(inputFileName);
+            inputStream = inputFileName.equals(ManagerSemantics.STANDARD_STREAM) ?
+                    new FileInputStream(FileDescriptor.in) : new FileInputStream(inputFileName);
         }
         catch (FileNotFoundException e) {
             return new Pair<>(null, RC.CODE_INVALID_INPUT_STREAM);
         }
         try {
-            outputStream = new FileOutputStream(outputFileName);
+            outputStream = outputFileName.equals(ManagerSemantics.STANDARD_STREAM) ?
+                    new FileOutputStream(FileDescriptor.out) : new FileOutputStream(outputFileName);
         }
         catch (FileNotFoundException e) {
             closeStream(inputStream);
@@ -292,6 +427,9 @@ public class PipelineManager implements IConfigurable {
     }
 
     private void closeStream(Closeable c) {
+        if (c == null) {
+            return;
+        }
         try {
             c.close();
         }
@@ -300,6 +438,79 @@ public class PipelineManager implements IConfigurable {
         }
     }
 
+    /*
+     opens the output file once more for the mapped write mode of the
+     writer, mapping needs a channel that can read as well. The mode is
+     only possible when the output size is known before the run: the reader
+     passes raw bytes and only substitutors follow it
+     */
+    private Pair<RandomAccessFile, RC> prepareMappedOutput(IPipelineStep[] workers) {
+        IPipelineStep last = workers[workers.length - 1];
+        if (!(last instanceof FileWriter) || !((FileWriter) last).isMappedMode()) {
+            return new Pair<>(null, RC.CODE_SUCCESS);
+        }
+        FileWriter writer = (FileWriter) last;
+
+        long expectedSize = expectedOutputSize(workers);
+        if (expectedSize < 0 || outputFileName.equals(ManagerSemantics.STANDARD_STREAM)) {
+            return new Pair<>(null, writer.setMappedOutput(null, -1));
+        }
+
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(outputFileName, "rw");
+        }
+        catch (FileNotFoundException e) {
+            return new Pair<>(null, RC.CODE_INVALID_OUTPUT_STREAM);
+        }
+
+        RC retCode = writer.setMappedOutput(file, expectedSize);
+        if (retCode != RC.CODE_SUCCESS) {
+            closeStream(file);
+            return new Pair<>(null, retCode);
+        }
+        return new Pair<>(file, RC.CODE_SUCCESS);
+    }
+
+    private long expectedOutputSize(IPipelineStep[] workers) {
+        if (!(workers[0] instanceof FileReader)) {
+            return -1;
+        }
+        for (int workerId = 1; workerId < workers.length - 1; ++workerId) {
+            if (workers[workerId].getClass() != Substitutor.class) {
+                return -1;
+            }
+        }
+        return ((FileReader) workers[0]).getOutputSize();
+    }
+
+    /*
+     true if no step is left after fusing and the reader gives the raw
+     bytes of a file to a writer that does not encode them, the writer
+     then copies the input with transferTo instead of running the steps.
+     transferTo goes through the page cache, so not with direct I/O
+     */
+    private boolean isCopyThrough(IPipelineStep[] workers) {
+        if (workers.length != 2 || !(workers[0] instanceof FileReader) || !(workers[1] instanceof FileWriter)) {
+            return false;
+        }
+        FileReader reader = (FileReader) workers[0];
+        FileWriter writer = (FileWriter) workers[1];
+        return reader.getOutputSize() >= 0 && writer.writesRawBytes() &&
+                !reader.usesDirectIO() && !writer.usesDirectIO();
+    }
+
+    /*
+     lets the steps give their pooled buffers back
+     */
+    private void closeWorkers(IPipelineStep[] workers) {
+        for (IPipelineStep worker : workers) {
+            if (worker instanceof Closeable) {
+                closeStream((Closeable) worker);
+            }
+        }
+    }
+
     private Pair<IPipelineStep[], RC> createWorkers(FileInputStream inputStream, FileOutputStream outputStream) {
         assert inputStream != null;
         assert outputStream != null;
@@ -322,6 +533,14 @@ public class PipelineManager implements IConfigurable {
         assert IReader.class.isAssignableFrom(steps[0].getClass());
         assert IWriter.class.isAssignableFrom(steps[steps.length-1].getClass());
 
+        /* direct I/O opens the files once more by their paths */
+        if (steps[0] instanceof FileReader && !inputFileName.equals(ManagerSemantics.STANDARD_STREAM)) {
+            ((FileReader) steps[0]).setInputPath(Paths.get(inputFileName));
+        }
+        if (steps[steps.length - 1] instanceof FileWriter && !outputFileName.equals(ManagerSemantics.STANDARD_STREAM)) {
+            ((FileWriter) steps[steps.length - 1]).setOutputPath(Paths.get(outputFileName));
+        }
+
         ((IReader)steps[0]).setInputStream(inputStream);
         ((IWriter)steps[steps.length-1]).setOutputStream(outputStream);
 
@@ -348,6 +567,108 @@ public class PipelineManager implements IConfigurable {
         return step;
     }
 
+    /*
+     replaces every run of adjacent substitutors with a single step
+     using the composition of their tables, runs that compose to the
+     identity are dropped. Only tables of the same width are fused since
+     a byte table maps characters differently from a widened one, and
+     16-bit tables only in the same byte order
+     */
+    private IPipelineStep[] fuseSubstitutors(IPipelineStep[] workers) {
+        assert workers != null;
+
+        ArrayList<IPipelineStep> fused = new ArrayList<>();
+
+        int workerId = 0;
+        while (workerId < workers.length) {
+            if (!isFusableSubstitutor(workers[workerId])) {
+                fused.add(workers[workerId]);
+                ++workerId;
+                continue;
+            }
+
+            int runStart = workerId;
+            Substitutor first = (Substitutor) workers[workerId];
+            SubstitutionTable table = first.getTable();
+
+            ++workerId;
+            while (workerId < workers.length && isFusableSubstitutor(workers[workerId]) &&
+                    ((Substitutor) workers[workerId]).getTable().getWidth() == first.getTable().getWidth() &&
+                    table.canCompose(((Substitutor) workers[workerId]).getTable())) {
+                table = table.compose(((Substitutor) workers[workerId]).getTable());
+                ++workerId;
+            }
+            int runEnd = workerId - 1;
+
+            if (table.isIdentity()) {
+                logger.info("Dropped steps " + runStart + ".." + runEnd +
+                        ": substitution tables compose to the identity");
+                continue;
+            }
+
+            if (runEnd > runStart) {
+                first.setTable(table);
+                logger.info("Fused substitution steps " + runStart + ".." + runEnd + " into a single step");
+            }
+            fused.add(first);
+        }
+
+        return fused.toArray(new IPipelineStep[0]);
+    }
+
+    /*
+     puts a StageLink between every two steps
+     */
+    private IPipelineStep[] insertStageLinks(IPipelineStep[] workers) {
+        IPipelineStep[] chain = new IPipelineStep[2 * workers.length - 1];
+
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            chain[2 * workerId] = workers[workerId];
+            if (workerId < workers.length - 1) {
+                chain[2 * workerId + 1] = new StageLink(stageQueueDepth, stageWait, logger);
+            }
+        }
+        return chain;
+    }
+
+    /*
+     starts the stage threads of the links and runs the first step on
+     the current thread. The first step that fails decides the RC, the
+     stages after it stop with the same RC
+     */
+    private RC executeStaged(IPipelineStep[] chain) {
+        ArrayList<StageLink> links = new ArrayList<>();
+        for (IPipelineStep step : chain) {
+            if (step instanceof StageLink) {
+                links.add((StageLink) step);
+            }
+        }
+
+        logger.info("Running " + (links.size() + 1) + " stages on their own threads");
+        for (int linkId = 0; linkId < links.size(); ++linkId) {
+            links.get(linkId).setNext(linkId + 1 < links.size() ? links.get(linkId + 1) : null);
+            links.get(linkId).start("pipeline-stage-" + (linkId + 1));
+        }
+
+        RC retCode = ((IConsumer) chain[0]).execute();
+        if (retCode != RC.CODE_SUCCESS) {
+            links.get(0).fail(retCode);
+        }
+
+        for (StageLink link : links) {
+            RC stageCode = link.join();
+            if (retCode == RC.CODE_SUCCESS) {
+                retCode = stageCode;
+            }
+            link.close();
+        }
+        return retCode;
+    }
+
+    private boolean isFusableSubstitutor(IPipelineStep worker) {
+        return worker.getClass() == Substitutor.class && ((Substitutor) worker).getTable() != null;
+    }
+
     private RC putWorkersInChain(IPipelineStep[] workers) {
         assert workers != null;
 
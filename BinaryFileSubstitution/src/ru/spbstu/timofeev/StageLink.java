@@ -0,0 +1,332 @@
+package ru.spbstu.timofeev;
+
+import ru.spbstu.pipeline.*;
+import ru.spbstu.timofeev.utils.ICharViewMediator;
+import ru.spbstu.timofeev.utils.IShortViewMediator;
+import ru.spbstu.timofeev.utils.IViewMediator;
+import ru.spbstu.timofeev.utils.SpscRing;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.util.logging.Logger;
+
+/*
+ Link between two steps in the thread-per-stage mode. For the producer it
+ is an ordinary consumer: execute() takes the pending chunk and copies it
+ into an SpscRing, since the chunk belongs to the link only until
+ execute() returns. The stage thread of the link takes the chunks out of
+ the ring and runs the consumer step on each of them, serving them
+ through mediators of the type the consumer chose. The steps themselves
+ run unchanged.
+
+ The end of stream is queued after the last chunk, so the consumer sees it
+ in order. A failed stage fails the rings on both of its sides, then the
+ producer gets the RC from its next execute() and the stages further down
+ stop with the same RC.
+ */
+class StageLink implements IExecutor, Closeable, Runnable {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SpscRing ring;
+    private final Logger logger;
+
+    private IProducer producer;
+    private IMediator producerMediator;
+    private boolean producerDone;
+
+    private IConsumer consumer;
+    private StageLink next;
+
+    /* the chunk served to the consumer, null at the end of stream */
+    private ByteBuffer pending;
+
+    private Thread thread;
+    private volatile RC result = RC.CODE_SUCCESS;
+
+    StageLink(int depth, SpscRing.Wait wait, Logger logger) {
+        this.ring = new SpscRing(depth, wait);
+        this.logger = logger;
+    }
+
+    /*
+     the link after the consumer step, it is failed together with this one
+     */
+    void setNext(StageLink next) {
+        this.next = next;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     waits for the stage thread, returns the RC of its step
+     */
+    RC join() {
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while waiting for a stage thread");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+        return result;
+    }
+
+    void fail(RC retCode) {
+        ring.fail(retCode);
+    }
+
+    @Override
+    public RC setConfig(String configFileName) {
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        if (newProducer == null) {
+            logger.warning("Invalid producer passed to stage link");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        producer = newProducer;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        if (newConsumer == null) {
+            logger.warning("Invalid consumer passed to stage link");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        consumer = newConsumer;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        return producer.getOutputTypes();
+    }
+
+    /*
+     the link serves the type the consumer asks for and takes the same
+     type from the producer
+     */
+    @Override
+    public IMediator getMediator(TYPE type) {
+        producerMediator = producer.getMediator(type);
+        if (producerMediator == null) {
+            return null;
+        }
+
+        switch (type) {
+            case BYTE:
+                return new ByteMediator();
+            case SHORT:
+                return new ShortMediator();
+            case CHAR:
+                return new CharMediator();
+            default:
+                logger.warning("Mediator of type " + type + " is not implemented");
+                return null;
+        }
+    }
+
+    /*
+     runs on the producer's thread
+     */
+    @Override
+    public RC execute() {
+        RC failure = ring.failure();
+        if (failure != null) {
+            return failure;
+        }
+        if (producerDone) {
+            return RC.CODE_SUCCESS;
+        }
+
+        Object data = producerMediator instanceof IViewMediator ?
+                ((IViewMediator) producerMediator).getView() : producerMediator.getData();
+        if (data == null) {
+            producerDone = true;
+            ring.end();
+            return RC.CODE_SUCCESS;
+        }
+
+        int length = byteLength(data);
+        if (length == 0) {
+            return RC.CODE_SUCCESS;
+        }
+
+        ByteBuffer slot = ring.claim(length);
+        if (slot == null) {
+            failure = ring.failure();
+            if (failure != null) {
+                return failure;
+            }
+            logger.severe("No pooled buffer available for a chunk of " + length + " bytes between stages");
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+
+        copy(data, slot);
+        slot.flip();
+        ring.publish();
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private int byteLength(Object data) {
+        if (data instanceof ByteBuffer) {
+            return ((ByteBuffer) data).remaining();
+        }
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        }
+        if (data instanceof short[]) {
+            return Short.BYTES * ((short[]) data).length;
+        }
+        return Character.BYTES * ((char[]) data).length;
+    }
+
+    private void copy(Object data, ByteBuffer slot) {
+        if (data instanceof ByteBuffer) {
+            ByteBuffer chunk = (ByteBuffer) data;
+            slot.put(0, chunk, chunk.position(), chunk.remaining());
+            slot.position(chunk.remaining());
+        }
+        else if (data instanceof byte[]) {
+            slot.put((byte[]) data);
+        }
+        else if (data instanceof short[]) {
+            slot.asShortBuffer().put((short[]) data);
+            slot.position(Short.BYTES * ((short[]) data).length);
+        }
+        else {
+            slot.asCharBuffer().put((char[]) data);
+            slot.position(Character.BYTES * ((char[]) data).length);
+        }
+    }
+
+    /*
+     runs the consumer step on the stage thread until the end of stream
+     or the first failure
+     */
+    @Override
+    public void run() {
+        RC retCode = RC.CODE_SUCCESS;
+
+        while (true) {
+            ByteBuffer slot = ring.peek();
+            if (slot == null && ring.failure() != null) {
+                retCode = ring.failure();
+                break;
+            }
+
+            pending = slot;
+            retCode = consumer.execute();
+            pending = EMPTY;
+            if (slot != null) {
+                ring.release();
+            }
+
+            if (retCode != RC.CODE_SUCCESS || slot == null) {
+                break;
+            }
+        }
+
+        if (retCode != RC.CODE_SUCCESS) {
+            ring.fail(retCode);
+            if (next != null) {
+                next.fail(retCode);
+            }
+        }
+        result = retCode;
+    }
+
+    /*
+     takes the pending chunk, later calls for the same chunk get an empty one
+     */
+    private ByteBuffer takeView() {
+        ByteBuffer view = pending;
+        if (view != null) {
+            pending = EMPTY;
+        }
+        return view;
+    }
+
+    @Override
+    public void close() {
+        ring.close();
+    }
+
+    class ByteMediator implements IViewMediator {
+        @Override
+        public Object getData() {
+            ByteBuffer view = takeView();
+            if (view == null) {
+                return null;
+            }
+            byte[] data = new byte[view.remaining()];
+            view.get(view.position(), data);
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            return takeView();
+        }
+    }
+
+    class ShortMediator implements IViewMediator, IShortViewMediator {
+        @Override
+        public Object getData() {
+            ShortBuffer view = getShortView();
+            if (view == null) {
+                return null;
+            }
+            short[] data = new short[view.remaining()];
+            view.get(data);
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            return takeView();
+        }
+
+        @Override
+        public ShortBuffer getShortView() {
+            ByteBuffer view = takeView();
+            return view != null ? view.asShortBuffer() : null;
+        }
+    }
+
+    class CharMediator implements IViewMediator, ICharViewMediator {
+        @Override
+        public Object getData() {
+            CharBuffer view = getCharView();
+            if (view == null) {
+                return null;
+            }
+            char[] data = new char[view.remaining()];
+            view.get(data);
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            return takeView();
+        }
+
+        @Override
+        public CharBuffer getCharView() {
+            ByteBuffer view = takeView();
+            return view != null ? view.asCharBuffer() : null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ru.spbstu.timofeev;
+
+import ru.spbstu.pipeline.RC;
+import ru.spbstu.timofeev.workers.SubstitutionTable;
+
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+/*
+ Compiles a text substitution table into the binary format:
+ TableCompiler <source table> <target file> [big_endian | little_endian]
+ */
+public class TableCompiler {
+
+    public static void main(String[] Args) {
+        Logger logger = Logger.getLogger("TableCompiler");
+
+        if (Args == null || Args.length < 2 || Args.length > 3) {
+            System.out.println("Usage: TableCompiler <source table> <target file> [big_endian | little_endian]");
+            return;
+        }
+
+        ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+        if (Args.length == 3) {
+            if (Args[2].equals("little_endian")) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            }
+            else if (!Args[2].equals("big_endian")) {
+                System.out.println("Unknown byte order " + Args[2]);
+                return;
+            }
+        }
+
+        RC retCode = SubstitutionTable.compileFile(Args[0], Args[1], byteOrder, logger);
+        if (retCode != RC.CODE_SUCCESS) {
+            System.out.println("Failed to compile " + Args[0] + ": " + retCode);
+            return;
+        }
+
+        System.out.println("Done");
+    }
+}
@@ -0,0 +1,572 @@
+package ru.spbstu.timofeev.codec;
+
+import ru.spbstu.timofeev.utils.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ Container of independently deflated blocks, so that several blocks are
+ compressed or decompressed at once on a shared pool of worker threads
+ while the blocks still come out in order. Layout, numbers are big-endian:
+
+   header   magic "BFSB", version, 3 reserved bytes, block size
+   block    compressed length, length, CRC32 of the data, raw deflate data
+   end      a block header with compressed length -1
+   index    block count, then per block its offset (long), compressed
+            length, length and CRC32
+   trailer  offset of the index (long), magic "BFSI"
+
+ All blocks but the last hold block size bytes. The block headers make the
+ container readable as a stream, from a pipe as well; the index at the end
+ lets a reader of a seekable file find any block without the ones before.
+ */
+public class BlockCodec implements ICodec {
+
+    private static final byte[] MAGIC = {'B', 'F', 'S', 'B'};
+    private static final byte[] INDEX_MAGIC = {'B', 'F', 'S', 'I'};
+    private static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int TRAILER_SIZE = 12;
+    private static final int END_OF_BLOCKS = -1;
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int MAX_BLOCK_SIZE = 1 << 28;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    @Override
+    public String getName() {
+        return "blocks";
+    }
+
+    @Override
+    public byte[] getMagic() {
+        return MAGIC.clone();
+    }
+
+    @Override
+    public int getMaxLevel() {
+        return Deflater.BEST_COMPRESSION;
+    }
+
+    @Override
+    public ScatteringByteChannel newDecoder(ReadableByteChannel source) {
+        return new Decoder(source);
+    }
+
+    @Override
+    public IEncoder newEncoder(WritableByteChannel sink, int level) {
+        return new Encoder(sink, level);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREADS, task -> {
+                Thread thread = new Thread(task, "block-codec-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /*
+     worst case size of a deflated block
+     */
+    private static int bound(int length) {
+        return length + (length >> 8) + 64;
+    }
+
+    /*
+     number of blocks processed at once, a block holds about four times
+     its size in pooled buffers and at most half of the budget is used
+     */
+    private static int blocksInFlight(int blockSize) {
+        long budget = BufferPool.shared().getStatistics().budget;
+        return (int) Math.max(1, Math.min(THREADS + 1, budget / 2 / (4L * blockSize)));
+    }
+
+    private static ByteBuffer acquire(int size) throws IOException {
+        ByteBuffer buffer = BufferPool.shared().acquire(size);
+        if (buffer == null) {
+            throw new IOException("Buffer pool budget does not allow a " + size + " byte block");
+        }
+        return buffer;
+    }
+
+    /*
+     waits for the block, a block that failed is released
+     and its error is thrown
+     */
+    private static Block await(Future<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        }
+
+        if (block.error != null) {
+            block.release();
+            throw block.error;
+        }
+        return block;
+    }
+
+    /*
+     the pooled buffers of a block, both are released by the thread
+     that submitted the block so that they return to its pool cache.
+     Workers report failures in error instead of throwing for that reason
+     */
+    private static class Block {
+        final ByteBuffer input;
+        final ByteBuffer output;
+        final int length;
+        int crc;
+        IOException error;
+
+        Block(ByteBuffer input, ByteBuffer output, int length, int crc) {
+            this.input = input;
+            this.output = output;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        void release() {
+            BufferPool.shared().release(input);
+            BufferPool.shared().release(output);
+        }
+    }
+
+    private static class Decoder extends ScatteringChannel {
+        private final ReadableByteChannel source;
+        private final ByteBuffer header = ByteBuffer.allocate(Math.max(HEADER_SIZE, INDEX_ENTRY_SIZE));
+
+        private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        private Block current;
+
+        private int blockSize;
+        private int inFlight;
+        private boolean started;
+        private boolean ended;
+        private long blocks;
+
+        Decoder(ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!started) {
+                readHeader();
+                started = true;
+            }
+
+            int total = 0;
+            while (dst.hasRemaining()) {
+                if (current == null || !current.output.hasRemaining()) {
+                    if (current != null) {
+                        current.release();
+                        current = null;
+                    }
+
+                    submitBlocks();
+                    if (pending.isEmpty()) {
+                        return total == 0 ? -1 : total;
+                    }
+                    current = await(pending.poll());
+                    continue;
+                }
+
+                int length = Math.min(current.output.remaining(), dst.remaining());
+                dst.put(dst.position(), current.output, current.output.position(), length);
+                dst.position(dst.position() + length);
+                current.output.position(current.output.position() + length);
+                total += length;
+            }
+            return total;
+        }
+
+        private void readHeader() throws IOException {
+            readFully(HEADER_SIZE);
+            for (byte magic : MAGIC) {
+                if (header.get() != magic) {
+                    throw new IOException("Not a block container");
+                }
+            }
+            if (header.get() != VERSION) {
+                throw new IOException("Unsupported block container version");
+            }
+            header.position(header.position() + 3);
+
+            blockSize = header.getInt();
+            if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+                throw new IOException("Invalid block size " + blockSize);
+            }
+            inFlight = blocksInFlight(blockSize);
+        }
+
+        /*
+         reads blocks and hands them to the workers until
+         inFlight blocks are pending or the blocks end
+         */
+        private void submitBlocks() throws IOException {
+            while (!ended && pending.size() < inFlight) {
+                readFully(BLOCK_HEADER_SIZE);
+                int compressedLength = header.getInt();
+                int length = header.getInt();
+                int crc = header.getInt();
+
+                if (compressedLength == END_OF_BLOCKS) {
+                    readIndex();
+                    ended = true;
+                    return;
+                }
+                if (compressedLength < 0 || compressedLength > bound(blockSize) ||
+                        length < 0 || length > blockSize) {
+                    throw new IOException("Invalid block header");
+                }
+
+                ByteBuffer input = acquire(compressedLength);
+                ByteBuffer output;
+                try {
+                    while (input.hasRemaining()) {
+                        if (source.read(input) < 0) {
+                            throw new EOFException("Truncated block");
+                        }
+                    }
+                    input.flip();
+                    output = acquire(length);
+                }
+                catch (IOException ex) {
+                    BufferPool.shared().release(input);
+                    throw ex;
+                }
+
+                Block block = new Block(input, output, length, crc);
+                pending.add(executor().submit(() -> inflate(block)));
+                ++blocks;
+            }
+        }
+
+        private static Block inflate(Block block) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(block.input);
+                while (!inflater.finished()) {
+                    if (inflater.inflate(block.output) == 0 && (inflater.needsInput() ||
+                            inflater.needsDictionary() || !block.output.hasRemaining())) {
+                        break;
+                    }
+                }
+
+                block.output.flip();
+                if (!inflater.finished() || block.output.remaining() != block.length) {
+                    block.error = new IOException("Block length mismatch");
+                    return block;
+                }
+            }
+            catch (DataFormatException ex) {
+                block.error = new IOException("Invalid block data: " + ex.getMessage());
+                return block;
+            }
+            finally {
+                inflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(block.output.duplicate());
+            if ((int) crc.getValue() != block.crc) {
+                block.error = new IOException("Block checksum mismatch");
+            }
+            return block;
+        }
+
+        /*
+         the index is not needed for reading in order,
+         it is only checked against the blocks read
+         */
+        private void readIndex() throws IOException {
+            readFully(4);
+            int count = header.getInt();
+            if (count != blocks) {
+                throw new IOException("Block index lists " + count + " blocks instead of " + blocks);
+            }
+            for (int i = 0; i < count; ++i) {
+                readFully(INDEX_ENTRY_SIZE);
+            }
+
+            readFully(TRAILER_SIZE);
+            header.position(header.position() + 8);
+            for (byte magic : INDEX_MAGIC) {
+                if (header.get() != magic) {
+                    throw new IOException("Invalid block index trailer");
+                }
+            }
+        }
+
+        private void readFully(int length) throws IOException {
+            header.clear().limit(length);
+            while (header.hasRemaining()) {
+                if (source.read(header) < 0) {
+                    throw new EOFException("Truncated block container");
+                }
+            }
+            header.flip();
+        }
+
+        /*
+         waits for the blocks in work since their buffers are in use
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            while (!pending.isEmpty()) {
+                try {
+                    await(pending.poll()).release();
+                }
+                catch (IOException ex) {
+                    /* a failed block is released by await() */
+                }
+            }
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+        }
+    }
+
+    private static class Encoder implements IEncoder {
+        private final WritableByteChannel sink;
+        private final int level;
+        private final int inFlight;
+
+        private ByteBuffer block;
+        private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+
+        private final ByteBuffer header = ByteBuffer.allocate(Math.max(HEADER_SIZE, INDEX_ENTRY_SIZE));
+        private final ArrayList<long[]> index = new ArrayList<>();
+        private long offset;
+
+        private boolean started;
+        private boolean closed;
+
+        Encoder(WritableByteChannel sink, int level) {
+            this.sink = sink;
+            this.level = level;
+            this.inFlight = blocksInFlight(BLOCK_SIZE);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!started) {
+                writeHeader();
+                started = true;
+            }
+
+            int length = src.remaining();
+            while (src.hasRemaining()) {
+                if (block == null) {
+                    block = acquire(BLOCK_SIZE);
+                }
+
+                int part = Math.min(block.remaining(), src.remaining());
+                block.put(block.position(), src, src.position(), part);
+                block.position(block.position() + part);
+                src.position(src.position() + part);
+
+                if (!block.hasRemaining()) {
+                    submitBlock();
+                }
+            }
+            return length;
+        }
+
+        private void writeHeader() throws IOException {
+            header.clear();
+            header.put(MAGIC).put(VERSION).put(new byte[3]).putInt(BLOCK_SIZE);
+            writeHeaderBuffer();
+            offset = HEADER_SIZE;
+        }
+
+        private void submitBlock() throws IOException {
+            ByteBuffer input = block;
+            block = null;
+            input.flip();
+
+            while (pending.size() >= inFlight) {
+                writeBlock(await(pending.poll()));
+            }
+
+            ByteBuffer output;
+            try {
+                output = acquire(bound(input.remaining()));
+            }
+            catch (IOException ex) {
+                BufferPool.shared().release(input);
+                throw ex;
+            }
+
+            Block work = new Block(input, output, input.remaining(), 0);
+            pending.add(executor().submit(() -> deflate(work, level)));
+        }
+
+        private static Block deflate(Block block, int level) {
+            CRC32 crc = new CRC32();
+            crc.update(block.input.duplicate());
+            block.crc = (int) crc.getValue();
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(block.input);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (!block.output.hasRemaining()) {
+                        block.error = new IOException("Deflated block exceeds its bound");
+                        return block;
+                    }
+                    deflater.deflate(block.output);
+                }
+            }
+            finally {
+                deflater.end();
+            }
+
+            block.output.flip();
+            return block;
+        }
+
+        private void writeBlock(Block work) throws IOException {
+            try {
+                int compressedLength = work.output.remaining();
+
+                header.clear();
+                header.putInt(compressedLength).putInt(work.length).putInt(work.crc);
+                writeHeaderBuffer();
+                while (work.output.hasRemaining()) {
+                    sink.write(work.output);
+                }
+
+                index.add(new long[] {offset, compressedLength, work.length, work.crc});
+                offset += BLOCK_HEADER_SIZE + compressedLength;
+            }
+            finally {
+                work.release();
+            }
+        }
+
+        private void writeHeaderBuffer() throws IOException {
+            header.flip();
+            while (header.hasRemaining()) {
+                sink.write(header);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /*
+         writes the blocks still in work, the end marker and the index
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            try {
+                if (!started) {
+                    writeHeader();
+                    started = true;
+                }
+                if (block != null && block.position() > 0) {
+                    submitBlock();
+                }
+                while (!pending.isEmpty()) {
+                    writeBlock(await(pending.poll()));
+                }
+
+                header.clear();
+                header.putInt(END_OF_BLOCKS).putInt(0).putInt(0);
+                writeHeaderBuffer();
+                long indexOffset = offset + BLOCK_HEADER_SIZE;
+
+                header.clear();
+                header.putInt(index.size());
+                writeHeaderBuffer();
+                for (long[] entry : index) {
+                    header.clear();
+                    header.putLong(entry[0]).putInt((int) entry[1]).putInt((int) entry[2]).putInt((int) entry[3]);
+                    writeHeaderBuffer();
+                }
+
+                header.clear();
+                header.putLong(indexOffset).put(INDEX_MAGIC);
+                writeHeaderBuffer();
+            }
+            finally {
+                discard();
+            }
+        }
+
+        @Override
+        public void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            while (!pending.isEmpty()) {
+                try {
+                    await(pending.poll()).release();
+                }
+                catch (IOException ex) {
+                    /* a failed block is released by await() */
+                }
+            }
+            BufferPool.shared().release(block);
+            block = null;
+        }
+    }
+}
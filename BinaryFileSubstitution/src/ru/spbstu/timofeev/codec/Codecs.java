@@ -0,0 +1,111 @@
+package ru.spbstu.timofeev.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.ArrayList;
+
+/*
+ Registry of the known codecs. A faster codec is added by register()
+ before the pipeline is configured.
+ */
+public class Codecs {
+
+    public static final String AUTO = "auto";
+    public static final String NONE = "none";
+
+    private static final ArrayList<ICodec> codecs = new ArrayList<>();
+
+    static {
+        register(new GzipCodec());
+        register(new BlockCodec());
+    }
+
+    private Codecs() {
+    }
+
+    public static synchronized void register(ICodec codec) {
+        codecs.add(codec);
+    }
+
+    public static synchronized ICodec byName(String name) {
+        for (ICodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized int maxMagicLength() {
+        int length = 0;
+        for (ICodec codec : codecs) {
+            length = Math.max(length, codec.getMagic().length);
+        }
+        return length;
+    }
+
+    /*
+     returns the codec whose magic the bytes between position
+     and limit start with, or null
+     */
+    public static synchronized ICodec detect(ByteBuffer head) {
+        for (ICodec codec : codecs) {
+            byte[] magic = codec.getMagic();
+            if (head.remaining() < magic.length) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < magic.length; ++i) {
+                if (head.get(head.position() + i) != magic[i]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /*
+     returns a channel that gives the bytes of head first and reads
+     the source after that, used when the detection bytes could not be
+     read without consuming them
+     */
+    public static ScatteringByteChannel prepend(ByteBuffer head, ReadableByteChannel source) {
+        return new HeadChannel(head, source);
+    }
+
+    private static class HeadChannel extends ScatteringChannel {
+        private final ByteBuffer head;
+        private final ReadableByteChannel source;
+
+        HeadChannel(ByteBuffer head, ReadableByteChannel source) {
+            this.head = head;
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!head.hasRemaining()) {
+                return source.read(dst);
+            }
+
+            int length = Math.min(head.remaining(), dst.remaining());
+            dst.put(dst.position(), head, head.position(), length);
+            dst.position(dst.position() + length);
+            head.position(head.position() + length);
+
+            return length;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package ru.spbstu.timofeev.codec;
+
+import ru.spbstu.timofeev.utils.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ gzip (RFC 1952) over the raw deflate of Inflater and Deflater. The
+ compressed bytes go through one pooled direct buffer per channel, so
+ neither side copies into heap arrays. Concatenated members are decoded
+ as one stream like gzip does.
+ */
+public class GzipCodec implements ICodec {
+
+    private static final byte[] MAGIC = {0x1f, (byte) 0x8b, 8};
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+    private static final int FRESERVED = 0xe0;
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final byte OS_UNKNOWN = (byte) 255;
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private static final byte[] NO_INPUT = new byte[0];
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public byte[] getMagic() {
+        return MAGIC.clone();
+    }
+
+    @Override
+    public int getMaxLevel() {
+        return Deflater.BEST_COMPRESSION;
+    }
+
+    @Override
+    public ScatteringByteChannel newDecoder(ReadableByteChannel source) {
+        ByteBuffer in = BufferPool.shared().acquire(BUFFER_SIZE);
+        if (in == null) {
+            return null;
+        }
+        return new Decoder(source, in);
+    }
+
+    @Override
+    public IEncoder newEncoder(WritableByteChannel sink, int level) {
+        ByteBuffer out = BufferPool.shared().acquire(BUFFER_SIZE);
+        if (out == null) {
+            return null;
+        }
+        return new Encoder(sink, out, level);
+    }
+
+    private static class Decoder extends ScatteringChannel {
+
+        private enum State {
+            HEADER,
+            DATA,
+            TRAILER,
+            END
+        }
+
+        private final ReadableByteChannel source;
+        private ByteBuffer in;
+
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        private State state = State.HEADER;
+        private int members;
+
+        Decoder(ReadableByteChannel source, ByteBuffer in) {
+            this.source = source;
+            this.in = in;
+            in.flip();
+        }
+
+        /*
+         fills dst up to its limit unless the stream ends before
+         */
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            int total = 0;
+            while (dst.hasRemaining()) {
+                switch (state) {
+                    case HEADER:
+                        state = readHeader() ? State.DATA : State.END;
+                        break;
+                    case DATA:
+                        total += inflate(dst);
+                        break;
+                    case TRAILER:
+                        readTrailer();
+                        state = State.HEADER;
+                        break;
+                    case END:
+                        return total == 0 ? -1 : total;
+                }
+            }
+            return total;
+        }
+
+        private int inflate(ByteBuffer dst) throws IOException {
+            if (inflater.needsInput() && !fill(1)) {
+                throw new EOFException("Unexpected end of gzip stream");
+            }
+            inflater.setInput(in);
+
+            int start = dst.position();
+            int inflated;
+            try {
+                inflated = inflater.inflate(dst);
+            }
+            catch (DataFormatException ex) {
+                throw new IOException("Invalid gzip data: " + ex.getMessage());
+            }
+
+            if (inflated > 0) {
+                crc.update(dst.duplicate().position(start).limit(start + inflated));
+                size += inflated;
+            }
+
+            if (inflater.finished()) {
+                state = State.TRAILER;
+            }
+            else if (inflater.needsDictionary()) {
+                throw new IOException("gzip stream needs a preset dictionary");
+            }
+
+            return inflated;
+        }
+
+        /*
+         returns false at the end of stream between members
+         */
+        private boolean readHeader() throws IOException {
+            if (!fill(1)) {
+                if (members == 0) {
+                    throw new EOFException("Empty gzip stream");
+                }
+                return false;
+            }
+            if (!fill(HEADER_SIZE)) {
+                throw new EOFException("Truncated gzip header");
+            }
+
+            for (byte magic : MAGIC) {
+                if (in.get() != magic) {
+                    throw new IOException("Not a gzip stream");
+                }
+            }
+            int flags = in.get() & 0xff;
+            if ((flags & FRESERVED) != 0) {
+                throw new IOException("Unsupported gzip header flags " + flags);
+            }
+            /* mtime, extra flags and os are not needed */
+            in.position(in.position() + HEADER_SIZE - MAGIC.length - 1);
+
+            if ((flags & FEXTRA) != 0) {
+                if (!fill(2)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                skip((in.get() & 0xff) | (in.get() & 0xff) << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                skipString();
+            }
+            if ((flags & FCOMMENT) != 0) {
+                skipString();
+            }
+            if ((flags & FHCRC) != 0) {
+                skip(2);
+            }
+
+            inflater.reset();
+            crc.reset();
+            size = 0;
+            ++members;
+
+            return true;
+        }
+
+        private void readTrailer() throws IOException {
+            if (!fill(TRAILER_SIZE)) {
+                throw new EOFException("Truncated gzip trailer");
+            }
+            if (getIntLE() != crc.getValue()) {
+                throw new IOException("gzip checksum mismatch");
+            }
+            if (getIntLE() != (size & 0xffffffffL)) {
+                throw new IOException("gzip length mismatch");
+            }
+        }
+
+        private long getIntLE() {
+            long value = 0;
+            for (int i = 0; i < 4; ++i) {
+                value |= (long) (in.get() & 0xff) << (8 * i);
+            }
+            return value;
+        }
+
+        private void skip(int length) throws IOException {
+            while (length > 0) {
+                if (!fill(1)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                int skipped = Math.min(length, in.remaining());
+                in.position(in.position() + skipped);
+                length -= skipped;
+            }
+        }
+
+        private void skipString() throws IOException {
+            do {
+                if (!fill(1)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+            } while (in.get() != 0);
+        }
+
+        /*
+         makes at least count compressed bytes available,
+         returns false if the source ends before
+         */
+        private boolean fill(int count) throws IOException {
+            while (in.remaining() < count) {
+                in.compact();
+                int bytesRead = source.read(in);
+                in.flip();
+                if (bytesRead < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inflater.end();
+            BufferPool.shared().release(in);
+            in = null;
+        }
+    }
+
+    private static class Encoder implements IEncoder {
+        private final WritableByteChannel sink;
+        private ByteBuffer out;
+
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        private boolean closed;
+
+        Encoder(WritableByteChannel sink, ByteBuffer out, int level) {
+            this.sink = sink;
+            this.out = out;
+            this.deflater = new Deflater(level, true);
+
+            out.clear();
+            out.put(MAGIC);
+            /* no flags, no mtime, no extra flags */
+            out.put(new byte[HEADER_SIZE - MAGIC.length - 1]);
+            out.put(OS_UNKNOWN);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            int length = src.remaining();
+            crc.update(src.duplicate());
+            size += length;
+
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                deflater.deflate(out);
+                if (!out.hasRemaining()) {
+                    drain();
+                }
+            }
+            /* the deflater would otherwise see src again when it is reused */
+            deflater.setInput(NO_INPUT);
+
+            return length;
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                sink.write(out);
+            }
+            out.clear();
+        }
+
+        private void putIntLE(long value) {
+            for (int i = 0; i < 4; ++i) {
+                out.put((byte) (value >>> (8 * i)));
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /*
+         finishes the encoded stream and writes out what is buffered
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflater.deflate(out);
+                    if (!out.hasRemaining()) {
+                        drain();
+                    }
+                }
+
+                if (out.remaining() < TRAILER_SIZE) {
+                    drain();
+                }
+                putIntLE(crc.getValue());
+                putIntLE(size);
+                drain();
+            }
+            finally {
+                discard();
+            }
+        }
+
+        @Override
+        public void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+            BufferPool.shared().release(out);
+            out = null;
+        }
+    }
+}
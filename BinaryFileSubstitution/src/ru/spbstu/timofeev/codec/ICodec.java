@@ -0,0 +1,44 @@
+package ru.spbstu.timofeev.codec;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ Compression format the reader can decode and the writer can encode on the
+ fly. Decoders and encoders are channels over the file channel, so every
+ read mode of the reader and every write path of the writer works on top
+ of them. Closing them gives their buffers back but leaves the underlying
+ channel open, it belongs to the pipeline manager.
+ */
+public interface ICodec {
+
+    String getName();
+
+    /*
+     first bytes of every encoded stream, used to detect the codec on input
+     */
+    byte[] getMagic();
+
+    int getMaxLevel();
+
+    /*
+     returns null if the buffer pool budget does not allow the decoder
+     */
+    ScatteringByteChannel newDecoder(ReadableByteChannel source);
+
+    /*
+     level -1 is the default of the codec,
+     returns null if the buffer pool budget does not allow the encoder
+     */
+    IEncoder newEncoder(WritableByteChannel sink, int level);
+
+    interface IEncoder extends WritableByteChannel {
+
+        /*
+         releases the encoder without finishing the encoded stream,
+         close() finishes it
+         */
+        void discard();
+    }
+}
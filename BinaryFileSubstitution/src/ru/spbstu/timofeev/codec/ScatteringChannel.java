@@ -0,0 +1,44 @@
+package ru.spbstu.timofeev.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+/*
+ Scattering reads on top of single buffer reads, the buffers are filled
+ one after another until the end of stream
+ */
+public abstract class ScatteringChannel implements ScatteringByteChannel {
+
+    protected boolean closed;
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+
+        for (int i = offset; i < offset + length; ++i) {
+            while (dsts[i].hasRemaining()) {
+                int bytesRead = read(dsts[i]);
+                if (bytesRead < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                if (bytesRead == 0) {
+                    return total;
+                }
+                total += bytesRead;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+}
@@ -1,10 +1,14 @@
 package ru.spbstu.timofeev.config;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.logging.Logger;
 
 public abstract class BaseSemantics {
 
+    public static final String AUTO = "auto";
+
     private final Logger logger;
     protected BaseSemantics(Logger logger) {
         this.logger = logger;
@@ -29,6 +33,69 @@ public abstract class BaseSemantics {
         return true;
     }
 
+    /*
+     parses a byte count with an optional K, M or G suffix,
+     returns null if the value is not a positive size
+     */
+    public static Long parseSize(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        long multiplier = 1;
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+            case 'K':
+                multiplier = 1L << 10;
+                break;
+            case 'M':
+                multiplier = 1L << 20;
+                break;
+            case 'G':
+                multiplier = 1L << 30;
+                break;
+        }
+        String digits = multiplier == 1 ? value : value.substring(0, value.length() - 1);
+
+        try {
+            long size = Long.parseLong(digits.trim());
+            if (size <= 0 || size > Long.MAX_VALUE / multiplier) {
+                return null;
+            }
+            return size * multiplier;
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /*
+     a chunk size is either a positive size with an optional suffix or auto
+     */
+    public static boolean validateChunkSize(String value) {
+        return AUTO.equals(value) || validateIntSize(value);
+    }
+
+    /*
+     a size with an optional suffix that fits into an int
+     */
+    public static boolean validateIntSize(String value) {
+        Long size = parseSize(value);
+        return size != null && size <= Integer.MAX_VALUE;
+    }
+
+    public static boolean validateBoolean(String value) {
+        return value.equals("true") || value.equals("false");
+    }
+
+    public static boolean validateCharset(String value) {
+        try {
+            return Charset.isSupported(value);
+        }
+        catch (IllegalCharsetNameException ex) {
+            return false;
+        }
+    }
+
     public static boolean validateExistingFile(String value) {
         if (value == null) {
             return false;
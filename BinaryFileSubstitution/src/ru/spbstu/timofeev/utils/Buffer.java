@@ -2,22 +2,69 @@ package ru.spbstu.timofeev.utils;
 
 import ru.spbstu.pipeline.RC;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.ReadableByteChannel;
 
+/*
+ Holds the pending chunk of a pipeline step. The chunk is either a copy
+ kept in the own storage or a chunk lent by the producer without copying.
+ The own storage is a direct buffer borrowed from the shared BufferPool
+ when first needed and given back by release().
+
+ Views returned by takeView() and chunks passed to lend() follow one rule:
+ a view belongs to the consumer until the consumer's execute() returns,
+ the consumer may modify it in place or lend it further down the chain,
+ and the producer may reuse the backing storage only after that.
+
+ Typed views cover whole units only. The bytes of an incomplete unit at
+ the end of a chunk are carried over and put in front of the next chunk,
+ the same is done for an incomplete sequence left by a charset decoder.
+ */
 public class Buffer {
-    private byte[] data;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int MAX_CARRY = 16;
+
+    private final BufferPool pool;
+    private final int initialCapacity;
+
+    private ByteBuffer storage;
     private int bufferTop;
 
+    private ByteBuffer lent;
+
+    private ByteBuffer wrapper;
+
+    private final byte[] carry = new byte[MAX_CARRY];
+    private int carryLength;
+
     public Buffer(int initialCapacity) {
-        data = new byte[initialCapacity];
+        this(initialCapacity, BufferPool.shared());
+    }
+
+    public Buffer(int initialCapacity, BufferPool pool) {
+        this.pool = pool;
+        this.initialCapacity = initialCapacity;
         bufferTop = 0;
     }
 
     public byte[] take() {
 
+        if (lent != null) {
+            byte[] copy = new byte[lent.remaining()];
+            lent.get(lent.position(), copy);
+            lent = null;
+            return copy;
+        }
+
         byte[] copy = new byte[bufferTop];
 
-        System.arraycopy(data, 0, copy, 0, bufferTop);
+        if (bufferTop > 0) {
+            storage.get(0, copy, 0, bufferTop);
+        }
 
         bufferTop = 0;
 
@@ -25,15 +72,168 @@ public class Buffer {
     }
 
     public short[] takeShort() {
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        short[] result = new short[bufferTop / 2];
-        for (int i = 0; i < bufferTop / 2; ++i) {
-            result[i] = bb.getShort(2*i);
+        ShortBuffer chunk = takeShortView();
+
+        short[] result = new short[chunk.remaining()];
+        chunk.get(result);
+
+        return result;
+    }
+
+    public char[] takeChar() {
+        CharBuffer chunk = takeCharView();
+
+        char[] result = new char[chunk.remaining()];
+        chunk.get(result);
+
+        return result;
+    }
+
+    /*
+     returns the carried bytes and forgets them, used to finish
+     decoding at the end of stream
+     */
+    public ByteBuffer takeCarried() {
+        ByteBuffer rest = ByteBuffer.wrap(carry, 0, carryLength);
+        carryLength = 0;
+        return rest;
+    }
+
+    public ShortBuffer takeShortView() {
+        return takeView(Short.BYTES).asShortBuffer();
+    }
+
+    public CharBuffer takeCharView() {
+        return takeView(Character.BYTES).asCharBuffer();
+    }
+
+    /*
+     returns the whole units of the pending chunk without copying, owned
+     as by takeView(), the incomplete unit at the end is carried over to
+     the next chunk
+     */
+    public ByteBuffer takeView(int unitSize) {
+        assert unitSize > 0 && unitSize <= MAX_CARRY;
+
+        ByteBuffer chunk = takeView();
+
+        int tail = chunk.remaining() % unitSize;
+        if (tail != 0) {
+            int end = chunk.limit() - tail;
+            chunk.get(end, carry, 0, tail);
+            carryLength = tail;
+            chunk.limit(end);
         }
 
+        return chunk;
+    }
+
+    /*
+     carries the bytes between position and limit of a taken view
+     over to the next chunk, returns false if there are too many of them
+     */
+    public boolean carryOver(ByteBuffer rest) {
+        if (rest.remaining() > MAX_CARRY) {
+            return false;
+        }
+
+        carryLength = rest.remaining();
+        rest.get(rest.position(), carry, 0, carryLength);
+
+        return true;
+    }
+
+    /*
+     number of bytes carried over to the next chunk
+     */
+    public int carried() {
+        return carryLength;
+    }
+
+    /*
+     returns the pending chunk without copying and empties the buffer.
+     The view is never released by the caller, whether it is the own
+     storage, a lent chunk or an empty heap buffer: the storage stays
+     with this buffer until release() and a lent chunk with its lender
+     */
+    public ByteBuffer takeView() {
+        if (lent != null) {
+            ByteBuffer chunk = lent;
+            lent = null;
+            return chunk;
+        }
+
+        ByteBuffer chunk = pendingStorage();
         bufferTop = 0;
 
-        return result;
+        return chunk;
+    }
+
+    /*
+     makes the chunk between position and limit pending without copying it
+     */
+    public RC lend(ByteBuffer chunk) {
+        if (chunk == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        bufferTop = 0;
+        lent = null;
+
+        if (!chunk.hasRemaining()) {
+            return RC.CODE_SUCCESS;
+        }
+
+        if (carryLength == 0) {
+            lent = chunk;
+            return RC.CODE_SUCCESS;
+        }
+
+        int offset = startChunk(chunk.remaining());
+        if (offset < 0) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        storage.put(offset, chunk, chunk.position(), chunk.remaining());
+        bufferTop = offset + chunk.remaining();
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC lend(byte[] array, int offset, int length) {
+        if (array == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (wrapper == null || wrapper.array() != array) {
+            wrapper = ByteBuffer.wrap(array);
+        }
+        wrapper.clear().position(offset).limit(offset + length);
+
+        return lend(wrapper);
+    }
+
+    /*
+     replaces the content with at most length bytes read from the channel,
+     returns the number of bytes read or -1 at the end of stream
+     */
+    public int readFrom(ReadableByteChannel channel, int length) throws IOException {
+        if (!reserve(carryLength + length)) {
+            throw new IOException("Buffer pool budget does not allow a " + length + " byte buffer");
+        }
+
+        lent = null;
+        bufferTop = 0;
+
+        storage.clear().position(carryLength).limit(carryLength + length);
+        int bytesRead = channel.read(storage);
+        if (bytesRead > 0) {
+            storage.put(0, carry, 0, carryLength);
+            bufferTop = carryLength + bytesRead;
+            carryLength = 0;
+        }
+
+        return bytesRead;
     }
 
     public RC put(byte[] newData) {
@@ -43,33 +243,158 @@ public class Buffer {
         return put(newData, 0, newData.length);
     }
 
+    public RC put(short[] newData) {
+        if (newData == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        int offset = startChunk(2 * newData.length);
+        if (offset < 0) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        storage.clear().position(offset);
+        storage.asShortBuffer().put(newData);
+        bufferTop = offset + 2 * newData.length;
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC put(ShortBuffer newData) {
+        if (newData == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        int length = 2 * newData.remaining();
+        int offset = startChunk(length);
+        if (offset < 0) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        storage.clear().position(offset);
+        storage.asShortBuffer().put(newData.duplicate());
+        bufferTop = offset + length;
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC put(CharBuffer newData) {
+        if (newData == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        int length = 2 * newData.remaining();
+        ByteBuffer claimed = claim(length);
+        if (claimed == null) {
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        claimed.asCharBuffer().put(newData.duplicate());
+        commit(length);
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     returns the own storage with position and limit set to a free region
+     of length bytes, the bytes written there become pending by commit(),
+     returns null if the pool budget does not allow it
+     */
+    public ByteBuffer claim(int length) {
+        int offset = startChunk(length);
+        if (offset < 0) {
+            return null;
+        }
+
+        bufferTop = offset;
+        storage.clear().position(offset).limit(offset + length);
+
+        return storage;
+    }
+
+    public void commit(int length) {
+        bufferTop += length;
+    }
+
     public RC put(byte[] newData, int offset, int length) {
         if (newData == null) {
             return RC.CODE_INVALID_ARGUMENT;
         }
 
-        if (bufferTop + length > data.length) {
-            extend(bufferTop + length);
+        int start = startChunk(length);
+        if (start < 0) {
+            return RC.CODE_INVALID_ARGUMENT;
         }
 
-        System.arraycopy(newData, offset, data, 0, length);
-        bufferTop = length;
+        storage.put(start, newData, offset, length);
+        bufferTop = start + length;
 
         return RC.CODE_SUCCESS;
     }
 
     public boolean isEmpty() {
-        return bufferTop == 0;
+        return bufferTop == 0 && lent == null;
     }
 
     public int capacity() {
-        return data.length;
+        return storage == null ? 0 : storage.capacity();
     }
 
-    private void extend(int requiredCapacity) {
-        int newCapacity = requiredCapacity > 2 * data.length ? requiredCapacity : 2 * data.length;
-        byte[] newData = new byte[newCapacity];
-        System.arraycopy(data, 0, newData, 0, data.length);
-        data = newData;
+    /*
+     gives the storage back to the pool, the buffer borrows
+     a new one if it is used again
+     */
+    public void release() {
+        pool.release(storage);
+        storage = null;
+        bufferTop = 0;
+        lent = null;
+        carryLength = 0;
+    }
+
+    /*
+     prepares the own storage for a chunk of length bytes that follows
+     the carried bytes, returns the offset of the chunk or -1
+     */
+    private int startChunk(int length) {
+        lent = null;
+        bufferTop = 0;
+
+        if (!reserve(carryLength + length)) {
+            return -1;
+        }
+
+        int offset = carryLength;
+        storage.clear();
+        storage.put(0, carry, 0, carryLength);
+        carryLength = 0;
+
+        return offset;
+    }
+
+    private ByteBuffer pendingStorage() {
+        if (bufferTop == 0) {
+            return EMPTY.duplicate();
+        }
+        return storage.clear().limit(bufferTop);
+    }
+
+    /*
+     makes sure the storage holds at least requiredCapacity bytes,
+     the current content is not preserved, so the old storage goes
+     back to the pool before the larger one is borrowed
+     */
+    private boolean reserve(int requiredCapacity) {
+        if (storage != null && storage.capacity() >= requiredCapacity) {
+            return true;
+        }
+
+        int newCapacity = Math.max(requiredCapacity, storage == null ? initialCapacity : 2 * storage.capacity());
+
+        pool.release(storage);
+        bufferTop = 0;
+
+        storage = pool.acquire(newCapacity);
+        return storage != null;
     }
 }
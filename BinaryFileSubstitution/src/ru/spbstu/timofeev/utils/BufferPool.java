@@ -0,0 +1,257 @@
+package ru.spbstu.timofeev.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ Process-wide pool of direct buffers. Capacities are rounded up to a power
+ of two size class, released buffers are kept in a free list per class.
+ All direct memory held by the pool, in use or free, counts against the
+ budget.
+
+ Under the block policy a request over budget waits only while other
+ threads hold leased buffers that could make room for it, and at most
+ WAIT_TIMEOUT_MILLIS. A request that could not fit even if every other
+ thread gave its buffers back fails at once, so does a request of a
+ single-threaded run that holds the whole budget itself.
+ */
+public class BufferPool {
+
+    public enum Policy {
+        BLOCK,
+        FAIL
+    }
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 30;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    private static final long WAIT_TIMEOUT_MILLIS = 10_000;
+
+    public static final long DEFAULT_BUDGET = 256L << 20;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_BUDGET, Policy.BLOCK);
+
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+
+    /* the thread that acquired each buffer in use */
+    private final Map<ByteBuffer, Thread> leases = new IdentityHashMap<>();
+
+    private long budget;
+    private Policy policy;
+
+    private long allocatedBytes;
+    private long inUseBytes;
+    private long peakAllocatedBytes;
+
+    private long acquires;
+    private long freeListHits;
+    private long allocations;
+    private long waits;
+    private long failures;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long budget, Policy policy) {
+        this.budget = budget;
+        this.policy = policy;
+
+        freeLists = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            freeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    public synchronized void configure(long budget, Policy policy) {
+        this.budget = budget;
+        this.policy = policy;
+        notifyAll();
+    }
+
+    /*
+     returns a cleared direct buffer with at least the requested capacity
+     and limit set to size, or null if the budget does not allow it
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            ++acquires;
+            buffer = acquireShared(sizeClass);
+            if (buffer == null) {
+                return null;
+            }
+            inUseBytes += buffer.capacity();
+            leases.put(buffer, Thread.currentThread());
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = sizeClass(buffer.capacity());
+        assert sizeClass >= 0 && classCapacity(sizeClass) == buffer.capacity();
+
+        synchronized (this) {
+            leases.remove(buffer);
+            inUseBytes -= buffer.capacity();
+
+            if (allocatedBytes > budget) {
+                allocatedBytes -= buffer.capacity();
+            }
+            else {
+                freeLists[sizeClass].push(buffer);
+            }
+            notifyAll();
+        }
+    }
+
+    private ByteBuffer acquireShared(int sizeClass) {
+        int capacity = classCapacity(sizeClass);
+
+        if (capacity > budget) {
+            ++failures;
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MILLIS;
+
+        while (true) {
+            ByteBuffer buffer = freeLists[sizeClass].poll();
+            if (buffer != null) {
+                ++freeListHits;
+                return buffer;
+            }
+
+            if (allocatedBytes + capacity > budget) {
+                trimFreeLists(allocatedBytes + capacity - budget);
+            }
+
+            if (allocatedBytes + capacity <= budget) {
+                ++allocations;
+                allocatedBytes += capacity;
+                peakAllocatedBytes = Math.max(peakAllocatedBytes, allocatedBytes);
+                return ByteBuffer.allocateDirect(capacity);
+            }
+
+            /* only the buffers of other threads can come back while waiting */
+            if (policy == Policy.FAIL || capacity > budget - leasedBy(Thread.currentThread())) {
+                ++failures;
+                return null;
+            }
+
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+                ++failures;
+                return null;
+            }
+
+            ++waits;
+            try {
+                wait(timeout);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                ++failures;
+                return null;
+            }
+        }
+    }
+
+    private long leasedBy(Thread thread) {
+        long bytes = 0;
+        for (Map.Entry<ByteBuffer, Thread> lease : leases.entrySet()) {
+            if (lease.getValue() == thread) {
+                bytes += lease.getKey().capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     drops free buffers of other classes so that their memory
+     can be reused for a different size
+     */
+    private void trimFreeLists(long bytesNeeded) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && bytesNeeded > 0; --i) {
+            while (bytesNeeded > 0 && !freeLists[i].isEmpty()) {
+                int capacity = freeLists[i].pop().capacity();
+                allocatedBytes -= capacity;
+                bytesNeeded -= capacity;
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 0) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    private static int classCapacity(int sizeClass) {
+        return 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(budget, allocatedBytes, inUseBytes, peakAllocatedBytes,
+                acquires, freeListHits, allocations, waits, failures);
+    }
+
+    public static class Statistics {
+        public final long budget;
+        public final long allocatedBytes;
+        public final long inUseBytes;
+        public final long peakAllocatedBytes;
+        public final long acquires;
+        public final long freeListHits;
+        public final long allocations;
+        public final long waits;
+        public final long failures;
+
+        private Statistics(long budget, long allocatedBytes, long inUseBytes, long peakAllocatedBytes,
+                           long acquires, long freeListHits, long allocations,
+                           long waits, long failures) {
+            this.budget = budget;
+            this.allocatedBytes = allocatedBytes;
+            this.inUseBytes = inUseBytes;
+            this.peakAllocatedBytes = peakAllocatedBytes;
+            this.acquires = acquires;
+            this.freeListHits = freeListHits;
+            this.allocations = allocations;
+            this.waits = waits;
+            this.failures = failures;
+        }
+
+        public double utilisation() {
+            return budget == 0 ? 0 : (double) peakAllocatedBytes / budget;
+        }
+
+        @Override
+        public String toString() {
+            return "budget " + budget + " bytes, allocated " + allocatedBytes +
+                    ", in use " + inUseBytes + ", peak " + peakAllocatedBytes +
+                    " (" + Math.round(100 * utilisation()) + "% of budget), " +
+                    acquires + " acquires: " + freeListHits + " free list hits, " + allocations + " allocations, " +
+                    waits + " waits, " + failures + " failures";
+        }
+    }
+}
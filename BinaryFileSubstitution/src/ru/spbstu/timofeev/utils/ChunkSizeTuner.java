@@ -0,0 +1,139 @@
+package ru.spbstu.timofeev.utils;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/*
+ Chooses a chunk size by hill climbing on the measured throughput. The size
+ is doubled or halved after every measurement window. When the throughput
+ drops the direction is reversed and the search goes on from the best size
+ seen so far. After a few reversals the size settles at the best one.
+ */
+public class ChunkSizeTuner {
+
+    public static final int DEFAULT_MIN_SIZE = 4 << 10;
+    public static final int DEFAULT_MAX_SIZE = 16 << 20;
+
+    private static final int INITIAL_SIZE = 64 << 10;
+
+    private static final int WINDOW_CHUNKS = 16;
+    private static final long WINDOW_NANOS = 20_000_000L;
+
+    private static final double TOLERANCE = 0.05;
+    private static final int MAX_REVERSALS = 3;
+
+    private final String owner;
+    private final Logger logger;
+
+    private final int minSize;
+    private final int maxSize;
+
+    private int size;
+    private boolean growing;
+
+    private long windowBytes;
+    private long windowNanos;
+    private int windowChunks;
+
+    private double lastThroughput;
+    private double bestThroughput;
+    private int bestSize;
+
+    private int reversals;
+    private boolean settled;
+    private boolean warmedUp;
+
+    private final ArrayList<Integer> trajectory = new ArrayList<>();
+
+    public ChunkSizeTuner(String owner, int minSize, int maxSize, Logger logger) {
+        this.owner = owner;
+        this.logger = logger;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+
+        size = Math.min(Math.max(INITIAL_SIZE, minSize), maxSize);
+        growing = true;
+        bestSize = size;
+        trajectory.add(size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /*
+     accounts one chunk of the given size that took the given time
+     */
+    public void record(long bytes, long nanos) {
+        if (settled) {
+            return;
+        }
+
+        windowBytes += bytes;
+        windowNanos += nanos;
+        ++windowChunks;
+
+        if (windowChunks < WINDOW_CHUNKS || windowNanos < WINDOW_NANOS) {
+            return;
+        }
+
+        double throughput = windowBytes * 1e9 / windowNanos;
+        windowBytes = 0;
+        windowNanos = 0;
+        windowChunks = 0;
+
+        if (!warmedUp) {
+            /* the first window mostly measures class loading and compilation */
+            warmedUp = true;
+            return;
+        }
+
+        int from = size;
+        if (lastThroughput > 0 && throughput < lastThroughput * (1 - TOLERANCE)) {
+            growing = !growing;
+            ++reversals;
+            from = bestSize;
+        }
+        lastThroughput = throughput;
+
+        if (throughput > bestThroughput) {
+            bestThroughput = throughput;
+            bestSize = size;
+        }
+
+        int next = growing ? from * 2 : from / 2;
+        next = Math.min(Math.max(next, minSize), maxSize);
+
+        if (next == size) {
+            growing = !growing;
+            ++reversals;
+        }
+
+        if (reversals >= MAX_REVERSALS) {
+            settled = true;
+            next = bestSize;
+        }
+
+        if (next != size) {
+            logger.info(owner + " chunk size " + size + " -> " + next + " at " + formatRate(throughput));
+            size = next;
+            trajectory.add(size);
+        }
+    }
+
+    /*
+     chosen size and the sizes tried on the way
+     */
+    public String describe() {
+        return owner + " chunk size " + (settled ? "settled at " : "ended at ") + size +
+                ", best " + formatRate(bestThroughput) + " at " + bestSize + ", trajectory " + trajectory;
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        return String.format("%.1f MB/s", bytesPerSecond / (1 << 20));
+    }
+}
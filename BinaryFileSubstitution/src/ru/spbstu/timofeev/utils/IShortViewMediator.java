@@ -0,0 +1,18 @@
+package ru.spbstu.timofeev.utils;
+
+import ru.spbstu.pipeline.IMediator;
+
+import java.nio.ShortBuffer;
+
+/*
+ Mediator of TYPE.SHORT data that hands the pending chunk over as a view
+ of the producer's storage. The view follows the ownership rule described
+ in Buffer.
+ */
+public interface IShortViewMediator extends IMediator {
+
+    /*
+     returns null at the end of stream
+     */
+    ShortBuffer getShortView();
+}
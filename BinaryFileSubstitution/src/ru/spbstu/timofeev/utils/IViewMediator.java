@@ -0,0 +1,19 @@
+package ru.spbstu.timofeev.utils;
+
+import ru.spbstu.pipeline.IMediator;
+
+import java.nio.ByteBuffer;
+
+/*
+ Mediator that can hand the pending chunk over without copying it.
+ A consumer calls either getData() or getView() for a chunk, never both.
+ Mediators of SHORT or CHAR data return views of whole units only.
+ The returned view follows the ownership rule described in Buffer.
+ */
+public interface IViewMediator extends IMediator {
+
+    /*
+     returns null at the end of stream
+     */
+    ByteBuffer getView();
+}
@@ -0,0 +1,55 @@
+package ru.spbstu.timofeev.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/*
+ Releases mappings without waiting for the garbage collector. There is no
+ public API for it, so sun.misc.Unsafe.invokeCleaner is used when present;
+ otherwise the mapping is left to the collector. A released buffer and all
+ its views must not be touched afterwards.
+ */
+public class MappedBuffers {
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object instance = null;
+        Method method = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            instance = field.get(null);
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            instance = null;
+            method = null;
+        }
+        unsafe = instance;
+        invokeCleaner = method;
+    }
+
+    private MappedBuffers() {
+    }
+
+    /*
+     returns false if the mapping is left to the garbage collector
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        if (buffer == null || invokeCleaner == null) {
+            return false;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+            return true;
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ru.spbstu.timofeev.utils;
+
+import ru.spbstu.pipeline.RC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ Bounded ring of chunks between one producer thread and one consumer
+ thread. Every slot is a pooled buffer the producer copies a chunk into,
+ the consumer reads the chunk in place and gives the slot back. Each
+ counter is written by one side only, so the ring takes no locks.
+
+ A side that has to wait either spins, which keeps its core busy but
+ reacts at once, or spins for a short while and then parks until the
+ other side wakes it. A spinning side yields the core after a while, on
+ fewer cores than stages the other side could not run otherwise. Either
+ side may fail the ring with an RC, which stops the waiting of both.
+ */
+public class SpscRing {
+
+    public enum Wait {
+        SPIN,
+        PARK
+    }
+
+    private static final int SPINS_BEFORE_PARK = 256;
+    private static final int SPINS_BEFORE_YIELD = 256;
+    /* parking is woken explicitly, the timeout only guards against mistakes */
+    private static final long PARK_NANOS = 1_000_000;
+
+    private final ByteBuffer[] slots;
+    private final Wait wait;
+    private final BufferPool pool;
+
+    /* chunks published by the producer and given back by the consumer */
+    private volatile long tail;
+    private volatile long head;
+
+    private volatile boolean ended;
+    private volatile RC failure;
+
+    private volatile Thread parkedProducer;
+    private volatile Thread parkedConsumer;
+
+    public SpscRing(int capacity, Wait wait) {
+        this(capacity, wait, BufferPool.shared());
+    }
+
+    public SpscRing(int capacity, Wait wait, BufferPool pool) {
+        assert capacity > 0;
+
+        this.slots = new ByteBuffer[capacity];
+        this.wait = wait;
+        this.pool = pool;
+    }
+
+    /*
+     waits for a free slot and returns it cleared with room for at least
+     length bytes. Returns null if the ring has failed or the pool does
+     not allow a slot of that size, failure() tells the two apart
+     */
+    public ByteBuffer claim(int length) {
+        int round = 0;
+        while (tail - head >= slots.length) {
+            if (failure != null) {
+                return null;
+            }
+            if (pause(round++)) {
+                parkedProducer = Thread.currentThread();
+                if (tail - head >= slots.length && failure == null) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parkedProducer = null;
+            }
+        }
+        if (failure != null) {
+            return null;
+        }
+
+        int index = (int) (tail % slots.length);
+        ByteBuffer slot = slots[index];
+        if (slot == null || slot.capacity() < length) {
+            ByteBuffer larger = pool.acquire(length);
+            if (larger == null) {
+                return null;
+            }
+            if (slot != null) {
+                pool.release(slot);
+            }
+            slot = larger;
+            slots[index] = slot;
+        }
+
+        return slot.clear().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /*
+     hands the claimed slot, flipped by the producer, to the consumer
+     */
+    public void publish() {
+        tail = tail + 1;
+        wake(parkedConsumer);
+    }
+
+    /*
+     marks the end of stream after the chunks published so far
+     */
+    public void end() {
+        ended = true;
+        wake(parkedConsumer);
+    }
+
+    /*
+     waits for the next chunk and returns it, returns null at the end
+     of stream or if the ring has failed, failure() tells the two apart
+     */
+    public ByteBuffer peek() {
+        int round = 0;
+        while (head == tail) {
+            if (failure != null) {
+                return null;
+            }
+            if (ended) {
+                /* the last chunk may have been published just before the end */
+                if (head == tail) {
+                    return null;
+                }
+                break;
+            }
+            if (pause(round++)) {
+                parkedConsumer = Thread.currentThread();
+                if (head == tail && !ended && failure == null) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parkedConsumer = null;
+            }
+        }
+        if (failure != null) {
+            return null;
+        }
+
+        return slots[(int) (head % slots.length)];
+    }
+
+    /*
+     gives the chunk returned by peek() back to the producer
+     */
+    public void release() {
+        head = head + 1;
+        wake(parkedProducer);
+    }
+
+    /*
+     stops both sides, the first failure is kept
+     */
+    public void fail(RC retCode) {
+        assert retCode != RC.CODE_SUCCESS;
+
+        if (failure == null) {
+            failure = retCode;
+        }
+        wake(parkedProducer);
+        wake(parkedConsumer);
+    }
+
+    public RC failure() {
+        return failure;
+    }
+
+    /*
+     returns the slots to the pool once both sides are done
+     */
+    public void close() {
+        for (int i = 0; i < slots.length; ++i) {
+            if (slots[i] != null) {
+                pool.release(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+
+    /*
+     returns true when the caller should park instead of spinning
+     */
+    private boolean pause(int round) {
+        if (wait == Wait.SPIN) {
+            if (round < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            }
+            else {
+                Thread.yield();
+            }
+            return false;
+        }
+        if (round < SPINS_BEFORE_PARK) {
+            Thread.onSpinWait();
+            return false;
+        }
+        return true;
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package ru.spbstu.timofeev.workers;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import ru.spbstu.timofeev.codec.ScatteringChannel;
+import ru.spbstu.timofeev.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/*
+ Reads and writes past the page cache with O_DIRECT. File offsets, lengths
+ and buffer addresses must be multiples of the block size of the file
+ system, so the bytes go through one aligned pooled buffer of BUFFER_SIZE
+ bytes and the channels are used like any other. The open methods return
+ null where the platform or the file system refuses direct I/O, the reader
+ and the writer keep using the page cache then.
+ */
+final class DirectIO {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private DirectIO() {
+    }
+
+    /*
+     opens the file for direct reads and checks that a read works,
+     some file systems only refuse at the first read
+     */
+    static Input openInput(Path path, Logger logger) {
+        Aligned aligned = open(path, logger, StandardOpenOption.READ);
+        if (aligned == null) {
+            return null;
+        }
+
+        try {
+            aligned.buffer.clear();
+            aligned.channel.read(aligned.buffer, 0);
+        }
+        catch (IOException ex) {
+            fallBack(aligned, path, ex, logger);
+            return null;
+        }
+        return new Input(aligned);
+    }
+
+    /*
+     opens the file for direct writes from the given position on, which
+     has to be aligned. A block of zeros is written and cut off again to
+     check that writes work
+     */
+    static Output openOutput(Path path, long position, Logger logger) {
+        Aligned aligned = open(path, logger, StandardOpenOption.WRITE);
+        if (aligned == null) {
+            return null;
+        }
+
+        try {
+            if (position % aligned.blockSize != 0) {
+                throw new IOException("output position " + position + " is not aligned");
+            }
+            aligned.buffer.clear().limit(aligned.blockSize);
+            while (aligned.buffer.hasRemaining()) {
+                aligned.channel.write(aligned.buffer, position + aligned.buffer.position());
+            }
+            aligned.channel.truncate(position);
+        }
+        catch (IOException ex) {
+            fallBack(aligned, path, ex, logger);
+            return null;
+        }
+        return new Output(aligned, position);
+    }
+
+    private static Aligned open(Path path, Logger logger, OpenOption mode) {
+        int blockSize;
+        FileChannel channel;
+        try {
+            blockSize = (int) Files.getFileStore(path).getBlockSize();
+            channel = FileChannel.open(path, mode, ExtendedOpenOption.DIRECT);
+        }
+        catch (IOException | UnsupportedOperationException ex) {
+            logger.info("Direct I/O is not available for " + path + ", using the page cache: " + ex.getMessage());
+            return null;
+        }
+
+        int size = (BUFFER_SIZE + blockSize - 1) / blockSize * blockSize;
+        ByteBuffer pooled = BufferPool.shared().acquire(size + blockSize);
+        if (pooled == null) {
+            logger.warning("No pooled buffer available for direct I/O, using the page cache");
+            close(channel);
+            return null;
+        }
+
+        Aligned aligned = new Aligned();
+        aligned.channel = channel;
+        aligned.blockSize = blockSize;
+        aligned.pooled = pooled;
+        aligned.buffer = pooled.alignedSlice(blockSize).limit(size).slice();
+        return aligned;
+    }
+
+    private static void fallBack(Aligned aligned, Path path, IOException ex, Logger logger) {
+        logger.info("Direct I/O is not available for " + path + ", using the page cache: " + ex.getMessage());
+        aligned.release();
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            /* nothing was written through it */
+        }
+    }
+
+    private static class Aligned {
+        FileChannel channel;
+        int blockSize;
+        ByteBuffer pooled;
+        ByteBuffer buffer;
+
+        void release() {
+            close(channel);
+            BufferPool.shared().release(pooled);
+            pooled = null;
+            buffer = null;
+        }
+    }
+
+    /*
+     reads whole aligned buffers and hands their bytes out, the file
+     ends with the first short read
+     */
+    static class Input extends ScatteringChannel {
+        private final Aligned aligned;
+        private long filePosition;
+        private boolean end;
+
+        private Input(Aligned aligned) {
+            this.aligned = aligned;
+            aligned.buffer.limit(0);
+        }
+
+        /*
+         the reads start at the aligned block containing position,
+         the bytes before position are skipped
+         */
+        void seek(long position) throws IOException {
+            filePosition = position / aligned.blockSize * aligned.blockSize;
+            end = false;
+            aligned.buffer.limit(0);
+
+            int skip = (int) (position - filePosition);
+            if (skip > 0) {
+                fill();
+                aligned.buffer.position(Math.min(skip, aligned.buffer.limit()));
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            ByteBuffer buffer = aligned.buffer;
+            int total = 0;
+            while (dst.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    if (end) {
+                        break;
+                    }
+                    fill();
+                    continue;
+                }
+
+                int length = Math.min(buffer.remaining(), dst.remaining());
+                dst.put(dst.position(), buffer, buffer.position(), length);
+                dst.position(dst.position() + length);
+                buffer.position(buffer.position() + length);
+                total += length;
+            }
+
+            return total == 0 && end && dst.hasRemaining() ? -1 : total;
+        }
+
+        private void fill() throws IOException {
+            ByteBuffer buffer = aligned.buffer;
+            buffer.clear();
+            int bytesRead = aligned.channel.read(buffer, filePosition);
+            if (bytesRead < buffer.capacity()) {
+                end = true;
+            }
+            buffer.flip();
+            filePosition += buffer.limit();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            aligned.release();
+        }
+    }
+
+    /*
+     collects the bytes in the aligned buffer and writes it whenever it
+     is full. flush() and close() pad the last block with zeros, write it
+     and cut the file to the bytes actually written
+     */
+    static class Output implements WritableByteChannel {
+        private final Aligned aligned;
+        private long filePosition;
+        private boolean closed;
+
+        private Output(Aligned aligned, long position) {
+            this.aligned = aligned;
+            this.filePosition = position;
+            aligned.buffer.clear();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            ByteBuffer buffer = aligned.buffer;
+            int total = src.remaining();
+            while (src.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), src.remaining());
+                buffer.put(buffer.position(), src, src.position(), length);
+                buffer.position(buffer.position() + length);
+                src.position(src.position() + length);
+
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+            }
+            return total;
+        }
+
+        private void writeBuffer() throws IOException {
+            ByteBuffer buffer = aligned.buffer;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                aligned.channel.write(buffer, filePosition + buffer.position());
+            }
+            filePosition += buffer.limit();
+            buffer.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /*
+         writes the pending bytes out. The whole blocks leave the buffer,
+         the bytes of the last block stay in it and are written once more
+         with the block they end up in
+         */
+        void flush() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            ByteBuffer buffer = aligned.buffer;
+            int pending = buffer.position();
+            if (pending == 0) {
+                return;
+            }
+
+            int whole = pending / aligned.blockSize * aligned.blockSize;
+            if (whole > 0) {
+                buffer.position(whole);
+                writeBuffer();
+                buffer.put(0, buffer, whole, pending - whole);
+                pending -= whole;
+                buffer.position(pending);
+            }
+            if (pending == 0) {
+                return;
+            }
+
+            while (buffer.position() < aligned.blockSize) {
+                buffer.put((byte) 0);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                aligned.channel.write(buffer, filePosition + buffer.position());
+            }
+            buffer.clear().position(pending);
+            aligned.channel.truncate(filePosition + pending);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            try {
+                flush();
+            }
+            finally {
+                discard();
+            }
+        }
+
+        /*
+         drops the pending bytes, used when the pipeline fails
+         */
+        void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            aligned.release();
+        }
+    }
+}
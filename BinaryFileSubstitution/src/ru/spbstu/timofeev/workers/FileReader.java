@@ -1,14 +1,33 @@
 package ru.spbstu.timofeev.workers;
 
 import ru.spbstu.pipeline.*;
+import ru.spbstu.timofeev.codec.Codecs;
+import ru.spbstu.timofeev.codec.ICodec;
 import ru.spbstu.timofeev.config.BaseSemantics;
 import ru.spbstu.timofeev.config.Config;
 import ru.spbstu.timofeev.utils.Buffer;
+import ru.spbstu.timofeev.utils.BufferPool;
+import ru.spbstu.timofeev.utils.ChunkSizeTuner;
+import ru.spbstu.timofeev.utils.ICharViewMediator;
+import ru.spbstu.timofeev.utils.IShortViewMediator;
+import ru.spbstu.timofeev.utils.IViewMediator;
+import ru.spbstu.timofeev.utils.MappedBuffers;
 import ru.spbstu.timofeev.utils.Pair;
 import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.logging.Logger;
 
 class ReaderGrammar extends PipelineBaseGrammar {
@@ -39,16 +58,83 @@ class ReaderSemantics extends BaseSemantics {
     @Override
     public boolean validateField(String fieldName, String fieldValue) {
         if (fieldName.equals(Fields.BUFFER_SIZE.toString())) {
+            return BaseSemantics.validateChunkSize(fieldValue);
+        }
+        else if (fieldName.equals(Fields.BUFFER_SIZE_MIN.toString()) ||
+                fieldName.equals(Fields.BUFFER_SIZE_MAX.toString())) {
+            return BaseSemantics.validateIntSize(fieldValue);
+        }
+        else if (fieldName.equals(Fields.CHARSET.toString())) {
+            if (BaseSemantics.validateCharset(fieldValue)) {
+                return true;
+            }
+            getLogger().warning("Unsupported charset: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.READ_MODE.toString())) {
+            return parseReadMode(fieldValue) != null;
+        }
+        else if (fieldName.equals(Fields.READ_SIZE.toString()) ||
+                fieldName.equals(Fields.MAP_WINDOW.toString())) {
+            Long size = parseSize(fieldValue);
+            return size != null && size <= MAX_READ_SIZE;
+        }
+        else if (fieldName.equals(Fields.MAP_THRESHOLD.toString())) {
+            return parseSize(fieldValue) != null;
+        }
+        else if (fieldName.equals(Fields.PREFETCH_DEPTH.toString())) {
             return BaseSemantics.validatePositiveInt(fieldValue);
         }
+        else if (fieldName.equals(Fields.DIRECT_IO.toString())) {
+            return BaseSemantics.validateBoolean(fieldValue);
+        }
+        else if (fieldName.equals(Fields.CODEC.toString())) {
+            if (fieldValue.equals(Codecs.AUTO) || fieldValue.equals(Codecs.NONE) ||
+                    Codecs.byName(fieldValue) != null) {
+                return true;
+            }
+            getLogger().warning("Unknown codec: " + fieldValue);
+            return false;
+        }
         else {
             getLogger().warning("Unknown field validation queried: " + fieldName);
         }
         return true;
     }
 
+    static final long MAX_READ_SIZE = 1L << 30;
+
+    enum ReadMode {
+        STREAM,
+        CHANNEL
+    }
+
+    public static ReadMode parseReadMode(String value) {
+        if (value == null) {
+            return null;
+        }
+        switch (value) {
+            case "stream":
+                return ReadMode.STREAM;
+            case "channel":
+                return ReadMode.CHANNEL;
+            default:
+                return null;
+        }
+    }
+
     public enum Fields {
-        BUFFER_SIZE("buffer_size");
+        BUFFER_SIZE("buffer_size"),
+        BUFFER_SIZE_MIN("buffer_size_min"),
+        BUFFER_SIZE_MAX("buffer_size_max"),
+        CHARSET("charset"),
+        READ_MODE("read_mode"),
+        READ_SIZE("read_size"),
+        MAP_THRESHOLD("map_threshold"),
+        MAP_WINDOW("map_window"),
+        PREFETCH_DEPTH("prefetch_depth"),
+        CODEC("codec"),
+        DIRECT_IO("direct_io");
 
         private final String name;
 
@@ -62,9 +148,57 @@ class ReaderSemantics extends BaseSemantics {
     }
 }
 
-public class FileReader implements IReader {
+public class FileReader implements IReader, Closeable {
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int READ_SEGMENTS = 4;
+    private static final int DEFAULT_READ_SIZE = 1 << 20;
+    private static final int DEFAULT_MAP_WINDOW = 64 << 20;
 
     private FileInputStream stream;
+    private FileChannel channel;
+
+    /*
+     all reads go through input, it is the channel itself or the decoder
+     of the codec in front of it. The codec is either configured or, with
+     detectCodec, chosen by the first bytes of the input
+     */
+    private ScatteringByteChannel input;
+    private ICodec codec;
+    private boolean detectCodec;
+
+    /*
+     with direct I/O the input file is opened once more past the page
+     cache and input starts with the direct channel instead
+     */
+    private boolean directRequested;
+    private Path inputPath;
+    private DirectIO.Input direct;
+
+    /*
+     in the channel mode one read fills all segments, they are handed
+     downstream in chunks of bufferSize that view the segments. The
+     segments are borrowed by the first read, a copied-through or
+     mapped input never takes them from the pool
+     */
+    private boolean channelRead;
+    private ByteBuffer[] segments;
+    private ByteBuffer[] windows;
+    private int segmentSize;
+
+    /*
+     inputs of at least mapThreshold bytes are mapped in windows
+     of mapWindow bytes instead of being read, 0 disables mapping
+     */
+    private long mapThreshold;
+    private int mapWindow;
+
+    /*
+     with a positive prefetchDepth blocks of readSize bytes are read
+     ahead on a separate thread
+     */
+    private int prefetchDepth;
+    private int readSize;
 
     private IConsumer consumer;
 
@@ -74,7 +208,14 @@ public class FileReader implements IReader {
 
     private int bufferSize;
 
+    private ChunkSizeTuner tuner;
+
     private final TYPE[] outputTypes = {TYPE.BYTE, TYPE.SHORT};
+    private final TYPE[] charOutputTypes = {TYPE.CHAR};
+
+    private CharsetDecoder decoder;
+    private Buffer decodedBuffer;
+    private boolean decodeFailed;
 
     private boolean finishing;
 
@@ -89,9 +230,34 @@ public class FileReader implements IReader {
             return RC.CODE_INVALID_ARGUMENT;
         }
         stream = fileInputStream;
+        channel = fileInputStream.getChannel();
+
+        if (directRequested) {
+            if (inputPath == null) {
+                logger.info("Reader uses the page cache: direct I/O needs an input file");
+            }
+            else {
+                direct = DirectIO.openInput(inputPath, logger);
+                if (direct != null) {
+                    logger.info("Reader reads past the page cache");
+                }
+            }
+        }
         return RC.CODE_SUCCESS;
     }
 
+    /*
+     the path of the input file, needed for direct I/O, is given
+     before the input stream
+     */
+    public void setInputPath(Path path) {
+        inputPath = path;
+    }
+
+    public boolean usesDirectIO() {
+        return direct != null;
+    }
+
     @Override
     public RC setConsumer(IConsumer newConsumer) {
         if (newConsumer == null) {
@@ -119,18 +285,64 @@ public class FileReader implements IReader {
 
         Config cfg = res.first;
 
-        Integer bufferSize = cfg.getIntParameter(ReaderSemantics.Fields.BUFFER_SIZE.toString());
-        assert bufferSize != null;
+        String bufferSizeValue = cfg.getParameter(ReaderSemantics.Fields.BUFFER_SIZE.toString());
+        assert bufferSizeValue != null;
+
+        if (bufferSizeValue.equals(ReaderSemantics.AUTO)) {
+            String minValue = cfg.getParameter(ReaderSemantics.Fields.BUFFER_SIZE_MIN.toString());
+            String maxValue = cfg.getParameter(ReaderSemantics.Fields.BUFFER_SIZE_MAX.toString());
+            int minSize = minValue != null ? (int) (long) ReaderSemantics.parseSize(minValue) : ChunkSizeTuner.DEFAULT_MIN_SIZE;
+            int maxSize = maxValue != null ? (int) (long) ReaderSemantics.parseSize(maxValue) : ChunkSizeTuner.DEFAULT_MAX_SIZE;
+            if (minSize > maxSize) {
+                logger.severe("Reader buffer_size_min is above buffer_size_max");
+                return RC.CODE_CONFIG_SEMANTIC_ERROR;
+            }
 
-        this.bufferSize = bufferSize;
+            this.tuner = new ChunkSizeTuner("Reader", minSize, maxSize, logger);
+            this.bufferSize = tuner.size();
+        }
+        else {
+            this.bufferSize = (int) (long) ReaderSemantics.parseSize(bufferSizeValue);
+        }
         this.outputBuffer = new Buffer(bufferSize);
 
+        String readMode = cfg.getParameter(ReaderSemantics.Fields.READ_MODE.toString());
+        String readSizeValue = cfg.getParameter(ReaderSemantics.Fields.READ_SIZE.toString());
+        long readSize = readSizeValue != null ? ReaderSemantics.parseSize(readSizeValue) : DEFAULT_READ_SIZE;
+        this.readSize = (int) ((readSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE);
+
+        String prefetchDepth = cfg.getParameter(ReaderSemantics.Fields.PREFETCH_DEPTH.toString());
+        this.prefetchDepth = prefetchDepth != null ? Integer.parseInt(prefetchDepth) : 0;
+
+        this.channelRead = readMode != null &&
+                ReaderSemantics.parseReadMode(readMode) == ReaderSemantics.ReadMode.CHANNEL && this.prefetchDepth == 0;
+
+        String mapThreshold = cfg.getParameter(ReaderSemantics.Fields.MAP_THRESHOLD.toString());
+        String mapWindow = cfg.getParameter(ReaderSemantics.Fields.MAP_WINDOW.toString());
+        this.mapThreshold = mapThreshold != null ? ReaderSemantics.parseSize(mapThreshold) : 0;
+        this.mapWindow = mapWindow != null ? (int) (long) ReaderSemantics.parseSize(mapWindow) : DEFAULT_MAP_WINDOW;
+
+        String directIO = cfg.getParameter(ReaderSemantics.Fields.DIRECT_IO.toString());
+        this.directRequested = Boolean.parseBoolean(directIO);
+
+        String codecName = cfg.getParameter(ReaderSemantics.Fields.CODEC.toString());
+        this.detectCodec = codecName == null || codecName.equals(Codecs.AUTO);
+        this.codec = codecName != null ? Codecs.byName(codecName) : null;
+
+        String charsetName = cfg.getParameter(ReaderSemantics.Fields.CHARSET.toString());
+        if (charsetName != null) {
+            this.decoder = Charset.forName(charsetName).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.decodedBuffer = new Buffer(2 * bufferSize);
+        }
+
         return RC.CODE_SUCCESS;
     }
 
     @Override
     public TYPE[] getOutputTypes() {
-        return outputTypes;
+        return decoder != null ? charOutputTypes : outputTypes;
     }
 
     @Override
@@ -140,13 +352,19 @@ public class FileReader implements IReader {
                 return new ByteMediator();
             case SHORT:
                 return new ShortMediator();
+            case CHAR:
+                if (decoder != null) {
+                    return new CharMediator();
+                }
+                logger.warning("Reader needs a charset to serve characters");
+                return null;
             default:
                 logger.warning("Mediator of type " + type + " is not implemented");
                 return null;
         }
     }
 
-    class ByteMediator implements IMediator {
+    class ByteMediator implements IViewMediator {
         @Override
         public Object getData() {
             byte[] data = outputBuffer.take();
@@ -155,25 +373,159 @@ public class FileReader implements IReader {
             }
             return data;
         }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView();
+            if (!view.hasRemaining() && finishing) {
+                return null;
+            }
+            return view;
+        }
     }
 
-    class ShortMediator implements IMediator {
+    class ShortMediator implements IViewMediator, IShortViewMediator {
         @Override
         public Object getData() {
             short[] data = outputBuffer.takeShort();
             if (data.length == 0 && finishing) {
+                reportCarried();
                 return null;
             }
             return data;
         }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView(Short.BYTES);
+            if (!view.hasRemaining() && finishing) {
+                reportCarried();
+                return null;
+            }
+            return view;
+        }
+
+        @Override
+        public ShortBuffer getShortView() {
+            ShortBuffer view = outputBuffer.takeShortView();
+            if (!view.hasRemaining() && finishing) {
+                reportCarried();
+                return null;
+            }
+            return view;
+        }
+
+        private void reportCarried() {
+            if (outputBuffer.carried() > 0) {
+                logger.warning("Input ends with " + outputBuffer.carried() +
+                        " byte(s) that do not form a whole short, they are dropped");
+            }
+        }
     }
 
-    private int readBytePortion(byte[] buffer, int bufferSize) {
-        int bytesRead;
+    class CharMediator implements IViewMediator, ICharViewMediator {
+        @Override
+        public Object getData() {
+            ByteBuffer view = takeDecoded();
+            if (view == null) {
+                return null;
+            }
+            char[] data = new char[view.remaining() / 2];
+            view.asCharBuffer().get(data);
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            return takeDecoded();
+        }
+
+        @Override
+        public CharBuffer getCharView() {
+            ByteBuffer view = takeDecoded();
+            return view == null ? null : view.asCharBuffer();
+        }
+    }
+
+    /*
+     returns the decoded characters of the pending chunk as UTF-16 bytes
+     */
+    private ByteBuffer takeDecoded() {
+        if (!outputBuffer.isEmpty()) {
+            decode(outputBuffer.takeView(), false);
+        }
+
+        ByteBuffer view = decodedBuffer.takeView(Character.BYTES);
+        if (!view.hasRemaining() && finishing) {
+            return null;
+        }
+        return view;
+    }
+
+    /*
+     decodes the bytes into the pooled decodedBuffer, an incomplete
+     sequence at the end is carried over to the next chunk
+     */
+    private boolean decode(ByteBuffer bytes, boolean endOfInput) {
+        int maxChars = (int) (bytes.remaining() * decoder.maxCharsPerByte()) + 1;
+
+        ByteBuffer claimed = decodedBuffer.claim(2 * maxChars);
+        if (claimed == null) {
+            logger.severe("No pooled buffer available for decoded characters");
+            decodeFailed = true;
+            return false;
+        }
+
+        CharBuffer chars = claimed.asCharBuffer();
+        decoder.decode(bytes, chars, endOfInput);
+        if (endOfInput) {
+            decoder.flush(chars);
+        }
+        else if (!outputBuffer.carryOver(bytes)) {
+            logger.warning("Dropping " + bytes.remaining() + " undecodable bytes");
+        }
+
+        decodedBuffer.commit(2 * chars.position());
+
+        return true;
+    }
+
+    /*
+     splits the read size into segments of whole pages borrowed from the pool
+     */
+    private RC allocateSegments() {
+        long pages = readSize / PAGE_SIZE;
+        segmentSize = (int) ((pages + READ_SEGMENTS - 1) / READ_SEGMENTS) * PAGE_SIZE;
+
+        segments = new ByteBuffer[READ_SEGMENTS];
+        windows = new ByteBuffer[READ_SEGMENTS];
+
+        for (int i = 0; i < READ_SEGMENTS; ++i) {
+            segments[i] = BufferPool.shared().acquire(segmentSize);
+            if (segments[i] == null) {
+                logger.severe("Buffer pool budget does not allow " + READ_SEGMENTS +
+                        " read segments of " + segmentSize + " bytes");
+                return RC.CODE_FAILED_TO_READ;
+            }
+            windows[i] = segments[i].duplicate();
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     fills the segments with one scattering read
+     */
+    private int readSegments() {
+        for (ByteBuffer segment : segments) {
+            segment.clear().limit(segmentSize);
+        }
+
+        long bytesRead;
         try {
-            bytesRead = stream.read(buffer, 0, bufferSize);
+            bytesRead = input.read(segments);
         } catch (IOException ex) {
-            logger.severe("IO exception while reading");
+            logger.severe("IO exception while reading: " + ex.getMessage());
             return -1;
         }
 
@@ -181,52 +533,403 @@ public class FileReader implements IReader {
             return 0;
         }
 
-        return bytesRead;
+        return (int) bytesRead;
     }
 
-    @Override
-    public RC execute() {
-        if (stream == null) {
-            logger.severe("Invalid input stream");
-            return RC.CODE_INVALID_INPUT_STREAM;
+    /*
+     hands the segments filled by the last read downstream in chunks of
+     at most bufferSize bytes, the chunks are lent without copying
+     */
+    private RC deliverSegments() {
+        for (int i = 0; i < segments.length; ++i) {
+            RC retCode = deliverChunks(windows[i], segments[i].position());
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
         }
+        return RC.CODE_SUCCESS;
+    }
 
-        byte[] buffer = new byte[bufferSize];
-        int bytesRead;
+    /*
+     lends the first length bytes of the view downstream
+     in chunks of at most bufferSize bytes
+     */
+    private RC deliverChunks(ByteBuffer view, int length) {
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + bufferSize);
+            view.clear().position(start).limit(end);
+            outputBuffer.lend(view);
+
+            long startTime = tuner != null ? System.nanoTime() : 0;
+
+            RC retCode = deliverPending();
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
 
-        finishing = false;
+            if (tuner != null) {
+                tuner.record(end - start, System.nanoTime() - startTime);
+                bufferSize = tuner.size();
+            }
+            start = end;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private boolean useMapping() {
+        if (mapThreshold <= 0 || input != channel) {
+            return false;
+        }
+        try {
+            return channel.size() - channel.position() >= mapThreshold;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /*
+     maps the rest of the input window by window and lends the chunks
+     as slices of the mapping, each window is released once its chunks
+     went through the chain
+     */
+    private RC deliverMapped() {
+        long size;
+        long offset;
+        try {
+            size = channel.size();
+            offset = channel.position();
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while mapping: " + ex.getMessage());
+            return RC.CODE_FAILED_TO_READ;
+        }
+
+        while (offset < size) {
+            int length = (int) Math.min(mapWindow, size - offset);
+
+            MappedByteBuffer window;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            catch (IOException ex) {
+                logger.severe("Failed to map input at offset " + offset + ": " + ex.getMessage());
+                return RC.CODE_FAILED_TO_READ;
+            }
+
+            RC retCode = deliverChunks(window.duplicate(), length);
+            MappedBuffers.unmap(window);
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
+
+            offset += length;
+        }
+
+        try {
+            channel.position(size);
+        }
+        catch (IOException ex) {
+            logger.warning("Failed to move past the mapped input: " + ex.getMessage());
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     reads ahead on a separate thread while the blocks read before
+     go down the chain
+     */
+    private RC deliverPrefetched() {
+        ReadAhead readAhead = ReadAhead.start(input, prefetchDepth, readSize);
+        if (readAhead == null) {
+            logger.severe("Buffer pool budget does not allow " + (prefetchDepth + 1) +
+                    " read-ahead blocks of " + readSize + " bytes");
+            return RC.CODE_FAILED_TO_READ;
+        }
+
+        try {
+            while (true) {
+                ReadAhead.Block block = readAhead.take();
+                if (block.error() != null) {
+                    logger.severe("IO exception while reading ahead: " + block.error().getMessage());
+                    return RC.CODE_FAILED_TO_READ;
+                }
+                if (block.length() < 0) {
+                    return RC.CODE_SUCCESS;
+                }
+
+                RC retCode = deliverChunks(block.view(), block.length());
+                readAhead.recycle(block);
+                if (retCode != RC.CODE_SUCCESS) {
+                    return retCode;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while waiting for the read-ahead thread");
+            return RC.CODE_FAILED_TO_READ;
+        }
+        finally {
+            readAhead.stop();
+        }
+    }
+
+    /*
+     reads the input portion by portion until the end of stream
+     */
+    private RC deliverRead() {
+        if (prefetchDepth > 0) {
+            return deliverPrefetched();
+        }
+
+        if (channelRead && segments == null) {
+            RC retCode = allocateSegments();
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
+        }
 
         while(true) {
-            bytesRead = readBytePortion(buffer, bufferSize);
+            long startTime = tuner != null && !channelRead ? System.nanoTime() : 0;
+
+            int bytesRead = channelRead ? readSegments() : readBytePortion(bufferSize);
             if (bytesRead < 0) {
                 logger.severe("FileReader failed to read");
                 return RC.CODE_FAILED_TO_READ;
             }
             else if (bytesRead == 0) {
-                finishing = true;
+                return RC.CODE_SUCCESS;
+            }
 
+            RC retCode = channelRead ? deliverSegments() : deliverPending();
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
+
+            if (tuner != null && !channelRead) {
+                tuner.record(bytesRead, System.nanoTime() - startTime);
+                bufferSize = tuner.size();
+            }
+        }
+    }
+
+    /*
+     passes what is left in the decoder and the end of stream downstream
+     */
+    private RC finish() {
+        if (decoder != null) {
+            if (!decode(outputBuffer.takeCarried(), true)) {
+                return RC.CODE_FAILED_TO_READ;
+            }
+            if (!decodedBuffer.isEmpty()) {
                 RC retCode = consumer.execute();
                 if (retCode != RC.CODE_SUCCESS) {
                     logger.severe("Reader consumer execution error");
                     return retCode;
                 }
+            }
+        }
+
+        finishing = true;
+
+        RC retCode = consumer.execute();
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("Reader consumer execution error");
+            return retCode;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC deliverPending() {
+        while(!outputBuffer.isEmpty()) {
+            RC retCode = consumer.execute();
+            if (retCode != RC.CODE_SUCCESS) {
+                logger.severe("Reader consumer execution error");
+                return retCode;
+            }
+            if (decodeFailed) {
+                return RC.CODE_FAILED_TO_READ;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private int readBytePortion(int bufferSize) {
+        int bytesRead;
+        try {
+            bytesRead = outputBuffer.readFrom(input, bufferSize);
+        } catch (IOException ex) {
+            logger.severe("IO exception while reading: " + ex.getMessage());
+            return -1;
+        }
+
+        if (bytesRead < 0) {
+            return 0;
+        }
 
+        return bytesRead;
+    }
+
+    /*
+     reads the bytes used to detect a codec, at the given position
+     without moving the channel or at the current one if it is -1
+     */
+    private ByteBuffer readHead(long position) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(Codecs.maxMagicLength());
+        while (head.hasRemaining()) {
+            int bytesRead = position >= 0 ?
+                    channel.read(head, position + head.position()) : channel.read(head);
+            if (bytesRead < 0) {
                 break;
             }
+        }
+        return head.flip();
+    }
 
-            assert (bytesRead <= outputBuffer.capacity());
-            outputBuffer.put(buffer, 0, bytesRead);
+    /*
+     number of bytes the reader is going to pass downstream or -1 if it
+     is not known before reading, that is for stdin, decoded characters
+     and encoded input
+     */
+    public long getOutputSize() {
+        if (channel == null || decoder != null || codec != null) {
+            return -1;
+        }
 
-            while(!outputBuffer.isEmpty()) {
-                RC retCode = consumer.execute();
-                if (retCode != RC.CODE_SUCCESS) {
-                    logger.severe("Reader consumer execution error");
-                    return retCode;
-                }
+        try {
+            long position = channel.position();
+            if (detectCodec && Codecs.detect(readHead(position)) != null) {
+                return -1;
             }
+            return channel.size() - position;
+        }
+        catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /*
+     puts the decoder of the configured or detected codec in front of
+     the channel. The detection bytes are read without moving the position
+     when the channel allows it and are given back in front of the input
+     otherwise
+     */
+    private RC openInput() {
+        input = channel;
+
+        if (direct != null) {
+            try {
+                direct.seek(channel.position());
+            }
+            catch (IOException ex) {
+                logger.severe("IO exception while reading: " + ex.getMessage());
+                return RC.CODE_FAILED_TO_READ;
+            }
+            input = direct;
+        }
+
+        ICodec inputCodec = codec;
+        if (detectCodec) {
+            long position;
+            try {
+                position = channel.position();
+            }
+            catch (IOException ex) {
+                position = -1;
+            }
+
+            ByteBuffer head;
+            try {
+                head = readHead(position);
+            }
+            catch (IOException ex) {
+                logger.severe("IO exception while reading: " + ex.getMessage());
+                return RC.CODE_FAILED_TO_READ;
+            }
+
+            inputCodec = Codecs.detect(head);
+            if (position < 0) {
+                input = Codecs.prepend(head, channel);
+            }
+        }
+
+        if (inputCodec == null) {
+            return RC.CODE_SUCCESS;
+        }
+
+        ScatteringByteChannel decoded = inputCodec.newDecoder(input);
+        if (decoded == null) {
+            logger.severe("Buffer pool budget does not allow a " + inputCodec.getName() + " decoder");
+            return RC.CODE_FAILED_TO_READ;
         }
+        logger.info("Reader decodes " + inputCodec.getName() + " input");
+        input = decoded;
 
         return RC.CODE_SUCCESS;
     }
+
+    @Override
+    public RC execute() {
+        if (stream == null) {
+            logger.severe("Invalid input stream");
+            return RC.CODE_INVALID_INPUT_STREAM;
+        }
+
+        finishing = false;
+        decodeFailed = false;
+
+        if (decoder != null) {
+            decoder.reset();
+        }
+
+        RC retCode = openInput();
+        if (retCode != RC.CODE_SUCCESS) {
+            return retCode;
+        }
+
+        retCode = useMapping() ? deliverMapped() : deliverRead();
+        if (retCode != RC.CODE_SUCCESS) {
+            return retCode;
+        }
+
+        if (tuner != null) {
+            logger.info(tuner.describe());
+        }
+
+        return finish();
+    }
+
+    @Override
+    public void close() {
+        if (outputBuffer != null) {
+            outputBuffer.release();
+        }
+        if (decodedBuffer != null) {
+            decodedBuffer.release();
+        }
+        if (segments != null) {
+            for (ByteBuffer segment : segments) {
+                BufferPool.shared().release(segment);
+            }
+            segments = null;
+        }
+        if (input != null && input != channel && input != direct) {
+            try {
+                input.close();
+            }
+            catch (IOException ex) {
+                logger.warning("Failed to close the decoder: " + ex.getMessage());
+            }
+            input = null;
+        }
+        if (direct != null) {
+            direct.close();
+            direct = null;
+        }
+    }
 }
 
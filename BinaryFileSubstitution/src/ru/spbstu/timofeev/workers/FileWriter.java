@@ -1,15 +1,37 @@
 package ru.spbstu.timofeev.workers;
 
 import ru.spbstu.pipeline.*;
+import ru.spbstu.timofeev.codec.Codecs;
+import ru.spbstu.timofeev.codec.ICodec;
 import ru.spbstu.timofeev.config.BaseSemantics;
 import ru.spbstu.timofeev.config.Config;
 import ru.spbstu.timofeev.utils.Buffer;
+import ru.spbstu.timofeev.utils.BufferPool;
+import ru.spbstu.timofeev.utils.ChunkSizeTuner;
+import ru.spbstu.timofeev.utils.ICharViewMediator;
+import ru.spbstu.timofeev.utils.IShortViewMediator;
+import ru.spbstu.timofeev.utils.IViewMediator;
+import ru.spbstu.timofeev.utils.MappedBuffers;
 import ru.spbstu.timofeev.utils.Pair;
 import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
 
 class WriterGrammar extends PipelineBaseGrammar {
@@ -47,6 +69,17 @@ class WriterGrammar extends PipelineBaseGrammar {
 
 class WriterSemantics extends BaseSemantics {
 
+    static final String DEFAULT_CHARSET = "UTF-8";
+
+    static final String STREAM_MODE = "stream";
+    static final String COALESCE_MODE = "coalesce";
+    static final String MAPPED_MODE = "mapped";
+
+    static final String DURABILITY_NONE = "none";
+    static final String DURABILITY_END = "end";
+    static final String DURABILITY_PERIODIC = "periodic";
+    static final String DURABILITY_DSYNC = "dsync";
+
     public WriterSemantics(Logger logger) {
         super(logger);
     }
@@ -54,8 +87,60 @@ class WriterSemantics extends BaseSemantics {
     @Override
     public boolean validateField(String fieldName, String fieldValue) {
         if (fieldName.equals(Fields.BUFFER_SIZE.toString())) {
+            return BaseSemantics.validateChunkSize(fieldValue);
+        }
+        else if (fieldName.equals(Fields.BUFFER_SIZE_MIN.toString()) ||
+                fieldName.equals(Fields.BUFFER_SIZE_MAX.toString())) {
+            return BaseSemantics.validateIntSize(fieldValue);
+        }
+        else if (fieldName.equals(Fields.CHARSET.toString())) {
+            if (BaseSemantics.validateCharset(fieldValue)) {
+                return true;
+            }
+            getLogger().warning("Unsupported charset: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.CODEC.toString())) {
+            if (fieldValue.equals(Codecs.NONE) || Codecs.byName(fieldValue) != null) {
+                return true;
+            }
+            getLogger().warning("Unknown codec: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.MAP_WINDOW.toString()) ||
+                fieldName.equals(Fields.WRITE_SIZE.toString())) {
+            return BaseSemantics.validateIntSize(fieldValue);
+        }
+        else if (fieldName.equals(Fields.WRITE_BEHIND_DEPTH.toString()) ||
+                fieldName.equals(Fields.SYNC_INTERVAL.toString())) {
             return BaseSemantics.validatePositiveInt(fieldValue);
         }
+        else if (fieldName.equals(Fields.SYNC_BYTES.toString())) {
+            Long size = parseSize(fieldValue);
+            return size != null && size > 0;
+        }
+        else if (fieldName.equals(Fields.DIRECT_IO.toString())) {
+            return BaseSemantics.validateBoolean(fieldValue);
+        }
+        else if (fieldName.equals(Fields.DURABILITY.toString())) {
+            if (fieldValue.equals(DURABILITY_NONE) || fieldValue.equals(DURABILITY_END) ||
+                    fieldValue.equals(DURABILITY_PERIODIC) || fieldValue.equals(DURABILITY_DSYNC)) {
+                return true;
+            }
+            getLogger().warning("Unknown durability: " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.COMPRESSION_LEVEL.toString())) {
+            return fieldValue.equals("0") || BaseSemantics.validatePositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.WRITE_MODE.toString())) {
+            if (fieldValue.equals(STREAM_MODE) || fieldValue.equals(COALESCE_MODE) ||
+                    fieldValue.equals(MAPPED_MODE)) {
+                return true;
+            }
+            getLogger().warning("Unknown write mode: " + fieldValue);
+            return false;
+        }
         else {
             getLogger().warning("Unknown field validation queried: " + fieldName);
         }
@@ -63,7 +148,20 @@ class WriterSemantics extends BaseSemantics {
     }
 
     public enum Fields {
-        BUFFER_SIZE("buffer_size");
+        BUFFER_SIZE("buffer_size"),
+        BUFFER_SIZE_MIN("buffer_size_min"),
+        BUFFER_SIZE_MAX("buffer_size_max"),
+        CHARSET("charset"),
+        CODEC("codec"),
+        COMPRESSION_LEVEL("compression_level"),
+        WRITE_MODE("write_mode"),
+        MAP_WINDOW("map_window"),
+        WRITE_BEHIND_DEPTH("write_behind_depth"),
+        WRITE_SIZE("write_size"),
+        DURABILITY("durability"),
+        SYNC_BYTES("sync_bytes"),
+        SYNC_INTERVAL("sync_interval"),
+        DIRECT_IO("direct_io");
 
         private final String name;
 
@@ -77,19 +175,107 @@ class WriterSemantics extends BaseSemantics {
     }
 }
 
-public class FileWriter implements IWriter {
+public class FileWriter implements IWriter, Closeable {
+
+    private static final int STDOUT_BUFFER_SIZE = 1 << 20;
+    private static final int DEFAULT_MAP_WINDOW = 64 << 20;
+    private static final int DEFAULT_WRITE_SIZE = 1 << 20;
+    private static final long DEFAULT_SYNC_BYTES = 64 << 20;
+    private static final int DEFAULT_SYNC_INTERVAL = 1000;
+
     private FileOutputStream stream;
 
+    private ByteBuffer writeBuffer;
+
+    /*
+     in the coalesce write mode chunks are gathered in writeBuffer and
+     written out together once bufferSize bytes are pending, stdout is
+     always written this way with STDOUT_BUFFER_SIZE
+     */
+    private boolean coalesce;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    /*
+     in the mapped write mode the output is preallocated to the expected
+     size and chunks are copied into windows of mapWindow bytes mapped
+     one after another, the file is cut to the written size at the end
+     */
+    private boolean mapRequested;
+    private int mapWindow;
+    private RandomAccessFile mappedFile;
+    private long mappedLength;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private boolean grown;
+
+    /*
+     with a positive writeBehindDepth chunks are copied into blocks of
+     writeSize bytes which a separate thread writes out, this replaces
+     coalescing and is not used together with mapping
+     */
+    private int writeBehindDepth;
+    private int writeSize;
+    private WriteBehind writeBehind;
+
+    /*
+     with the end durability the output is forced to the device once at
+     the end of stream, with periodic also after every syncBytes bytes or
+     syncInterval ms since the last force, whichever comes first. With
+     dsync the output file is opened once more with DSYNC, so every write
+     returns once its data is on the device. dsync only works with the
+     stream write mode and needs the output path.
+     Before a periodic force the bytes held in the write buffer, the
+     write-behind blocks and the direct I/O buffer are written out. An
+     encoder holds bytes until the end of stream, so an encoded output is
+     only forced at the end. The time spent in force is logged at the end
+     of stream
+     */
+    private String durability;
+    private FileChannel dsyncChannel;
+    private long syncBytes;
+    private long syncInterval;
+    private long unsyncedBytes;
+    private long lastSync;
+    private int syncCount;
+    private long syncNanos;
+    private long maxSyncNanos;
+
+    /*
+     with direct I/O the output file is opened once more past the page
+     cache and output writes to the direct channel instead, it is not
+     used together with mapping and the dsync durability
+     */
+    private boolean directRequested;
+    private Path outputPath;
+    private DirectIO.Output direct;
+
+    /*
+     the file channel, the direct channel or the encoder
+     of the codec in front of either
+     */
+    private WritableByteChannel output;
+
+    private ICodec codec;
+    private int compressionLevel;
+    private ICodec.IEncoder codecEncoder;
+
+    private final Buffer conversionBuffer = new Buffer(0);
+
     IMediator producerMediator;
     TYPE producerMediatorType;
 
-    private Buffer outputBuffer;
-
     private final Logger logger;
 
     private int bufferSize;
 
-    private final TYPE[] inputTypes = {TYPE.BYTE, TYPE.SHORT};
+    private ChunkSizeTuner tuner;
+
+    private final TYPE[] inputTypes = {TYPE.BYTE, TYPE.SHORT, TYPE.CHAR};
+
+    private CharsetEncoder encoder;
+    private final CharBuffer surrogatePair = CharBuffer.allocate(2);
+    private char carriedChar;
+    private boolean hasCarriedChar;
 
     public FileWriter(Logger logger) {
         this.logger = logger;
@@ -102,6 +288,156 @@ public class FileWriter implements IWriter {
             return RC.CODE_INVALID_ARGUMENT;
         }
         stream = fileOutputStream;
+        output = stream.getChannel();
+        lastSync = System.nanoTime();
+
+        if (directRequested) {
+            RC retCode = openDirect();
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
+        }
+
+        if (codec != null) {
+            codecEncoder = codec.newEncoder(output, compressionLevel);
+            if (codecEncoder == null) {
+                logger.severe("Buffer pool budget does not allow a " + codec.getName() + " encoder");
+                output = null;
+                return RC.CODE_INVALID_OUTPUT_STREAM;
+            }
+            output = codecEncoder;
+        }
+
+        try {
+            if (stream.getFD() == FileDescriptor.out && !durability.equals(WriterSemantics.DURABILITY_NONE)) {
+                logger.warning("Writer durability is not applied to the standard output");
+                durability = WriterSemantics.DURABILITY_NONE;
+            }
+            if (stream.getFD() == FileDescriptor.out && !coalesce && writeBehindDepth == 0) {
+                coalesce = true;
+                bufferSize = STDOUT_BUFFER_SIZE;
+                tuner = null;
+            }
+        }
+        catch (IOException ex) {
+            logger.warning("Invalid output stream passed to writer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (durability.equals(WriterSemantics.DURABILITY_DSYNC)) {
+            RC retCode = openDsync();
+            if (retCode != RC.CODE_SUCCESS) {
+                return retCode;
+            }
+        }
+
+        if (coalesce) {
+            writeBuffer = BufferPool.shared().acquire(bufferSize);
+            if (writeBuffer == null) {
+                logger.warning("No pooled write buffer available, writing without coalescing");
+                coalesce = false;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC openDsync() {
+        if (outputPath == null) {
+            logger.warning("Writer uses the end durability: dsync needs an output file");
+            durability = WriterSemantics.DURABILITY_END;
+            return RC.CODE_SUCCESS;
+        }
+
+        try {
+            dsyncChannel = FileChannel.open(outputPath, StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+            dsyncChannel.position(stream.getChannel().position());
+        }
+        catch (IOException ex) {
+            logger.severe("Failed to open " + outputPath + " for synchronized writes: " + ex.getMessage());
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        output = dsyncChannel;
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC openDirect() {
+        if (outputPath == null) {
+            logger.info("Writer uses the page cache: direct I/O needs an output file");
+            return RC.CODE_SUCCESS;
+        }
+
+        long position;
+        try {
+            position = stream.getChannel().position();
+        }
+        catch (IOException ex) {
+            logger.warning("Invalid output stream passed to writer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        direct = DirectIO.openOutput(outputPath, position, logger);
+        if (direct != null) {
+            logger.info("Writer writes past the page cache");
+            output = direct;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     the path of the output file, needed for direct I/O, is given
+     before the output stream
+     */
+    public void setOutputPath(Path path) {
+        outputPath = path;
+    }
+
+    public boolean usesDirectIO() {
+        return direct != null;
+    }
+
+    public boolean isMappedMode() {
+        return mapRequested;
+    }
+
+    /*
+     true if the bytes the writer gets reach the output unchanged,
+     charsets only apply to characters
+     */
+    public boolean writesRawBytes() {
+        return codec == null;
+    }
+
+    /*
+     gives the writer the output file opened for reading and writing,
+     which mapping requires, and the number of bytes the pipeline is going
+     to produce. Without a file or a size the writer falls back to the
+     stream mode
+     */
+    public RC setMappedOutput(RandomAccessFile file, long expectedSize) {
+        if (!mapRequested) {
+            return RC.CODE_SUCCESS;
+        }
+
+        if (file == null || expectedSize < 0) {
+            logger.info("Writer falls back to the stream mode: the output size is not known in advance");
+            return RC.CODE_SUCCESS;
+        }
+        if (codecEncoder != null) {
+            logger.info("Writer falls back to the stream mode: the output is encoded");
+            return RC.CODE_SUCCESS;
+        }
+
+        try {
+            file.setLength(expectedSize);
+        }
+        catch (IOException ex) {
+            logger.severe("Failed to preallocate the output: " + ex.getMessage());
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        mappedFile = file;
+        mappedLength = expectedSize;
         return RC.CODE_SUCCESS;
     }
 
@@ -143,68 +479,587 @@ public class FileWriter implements IWriter {
 
         Config cfg = res.first;
 
-        Integer bufferSize = cfg.getIntParameter(WriterGrammar.Fields.BUFFER_SIZE.toString());
-        assert bufferSize != null;
+        String bufferSizeValue = cfg.getParameter(WriterGrammar.Fields.BUFFER_SIZE.toString());
+        assert bufferSizeValue != null;
 
-        this.bufferSize = bufferSize;
-        this.outputBuffer = new Buffer(bufferSize);
+        if (bufferSizeValue.equals(WriterSemantics.AUTO)) {
+            String minValue = cfg.getParameter(WriterSemantics.Fields.BUFFER_SIZE_MIN.toString());
+            String maxValue = cfg.getParameter(WriterSemantics.Fields.BUFFER_SIZE_MAX.toString());
+            int minSize = minValue != null ? (int) (long) WriterSemantics.parseSize(minValue) : ChunkSizeTuner.DEFAULT_MIN_SIZE;
+            int maxSize = maxValue != null ? (int) (long) WriterSemantics.parseSize(maxValue) : ChunkSizeTuner.DEFAULT_MAX_SIZE;
+            if (minSize > maxSize) {
+                logger.severe("Writer buffer_size_min is above buffer_size_max");
+                return RC.CODE_CONFIG_SEMANTIC_ERROR;
+            }
+
+            this.tuner = new ChunkSizeTuner("Writer", minSize, maxSize, logger);
+            this.bufferSize = tuner.size();
+        }
+        else {
+            this.bufferSize = (int) (long) WriterSemantics.parseSize(bufferSizeValue);
+        }
+
+        String charsetName = cfg.getParameter(WriterSemantics.Fields.CHARSET.toString());
+        this.encoder = Charset.forName(charsetName != null ? charsetName : WriterSemantics.DEFAULT_CHARSET)
+                .newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        String writeMode = cfg.getParameter(WriterSemantics.Fields.WRITE_MODE.toString());
+        this.coalesce = WriterSemantics.COALESCE_MODE.equals(writeMode);
+        this.mapRequested = WriterSemantics.MAPPED_MODE.equals(writeMode);
+
+        String mapWindow = cfg.getParameter(WriterSemantics.Fields.MAP_WINDOW.toString());
+        this.mapWindow = mapWindow != null ? (int) (long) WriterSemantics.parseSize(mapWindow) : DEFAULT_MAP_WINDOW;
+
+        String writeBehindDepth = cfg.getParameter(WriterSemantics.Fields.WRITE_BEHIND_DEPTH.toString());
+        String writeSize = cfg.getParameter(WriterSemantics.Fields.WRITE_SIZE.toString());
+        this.writeBehindDepth = writeBehindDepth != null ? Integer.parseInt(writeBehindDepth) : 0;
+        this.writeSize = writeSize != null ? (int) (long) WriterSemantics.parseSize(writeSize) : DEFAULT_WRITE_SIZE;
+        if (writeBehindDepth != null && (coalesce || mapRequested)) {
+            logger.warning("Writer write_behind_depth is ignored in the " + writeMode + " write mode");
+            this.writeBehindDepth = 0;
+        }
+
+        String durability = cfg.getParameter(WriterSemantics.Fields.DURABILITY.toString());
+        String syncBytes = cfg.getParameter(WriterSemantics.Fields.SYNC_BYTES.toString());
+        String syncInterval = cfg.getParameter(WriterSemantics.Fields.SYNC_INTERVAL.toString());
+        this.durability = durability != null ? durability : WriterSemantics.DURABILITY_NONE;
+        this.syncBytes = syncBytes != null ? WriterSemantics.parseSize(syncBytes) : DEFAULT_SYNC_BYTES;
+        this.syncInterval = 1_000_000L * (syncInterval != null ? Integer.parseInt(syncInterval) : DEFAULT_SYNC_INTERVAL);
+        if (this.durability.equals(WriterSemantics.DURABILITY_DSYNC) &&
+                (coalesce || mapRequested || this.writeBehindDepth > 0)) {
+            logger.warning("Writer uses the stream write mode with the dsync durability");
+            this.coalesce = false;
+            this.mapRequested = false;
+            this.writeBehindDepth = 0;
+        }
+
+        String directIO = cfg.getParameter(WriterSemantics.Fields.DIRECT_IO.toString());
+        this.directRequested = Boolean.parseBoolean(directIO);
+        if (directRequested && (mapRequested || this.durability.equals(WriterSemantics.DURABILITY_DSYNC))) {
+            logger.warning("Writer direct_io is ignored with the mapped write mode and the dsync durability");
+            this.directRequested = false;
+        }
+
+        String codecName = cfg.getParameter(WriterSemantics.Fields.CODEC.toString());
+        String level = cfg.getParameter(WriterSemantics.Fields.COMPRESSION_LEVEL.toString());
+        this.codec = codecName != null ? Codecs.byName(codecName) : null;
+        this.compressionLevel = level != null ? Integer.parseInt(level) : -1;
+        if (codec != null && compressionLevel > codec.getMaxLevel()) {
+            logger.severe("Compression level of " + codec.getName() + " is at most " + codec.getMaxLevel());
+            return RC.CODE_CONFIG_SEMANTIC_ERROR;
+        }
+        if (codec != null && (this.durability.equals(WriterSemantics.DURABILITY_PERIODIC) ||
+                this.durability.equals(WriterSemantics.DURABILITY_DSYNC))) {
+            logger.warning("Writer uses the end durability with the " + codec.getName() + " codec");
+            this.durability = WriterSemantics.DURABILITY_END;
+        }
 
         return RC.CODE_SUCCESS;
     }
 
-    private byte[] convertToByte(Object data) {
+    private ByteBuffer convertToByte(Object data) {
         assert (data != null);
 
         switch (producerMediatorType) {
             case BYTE:
-                return (byte[]) data;
+                return ByteBuffer.wrap((byte[]) data);
             case SHORT:
-                short[] shortRepr = (short[]) data;
-                byte[] byteRepr = new byte[2 * shortRepr.length];
-                ByteBuffer.wrap(byteRepr).asShortBuffer().put(shortRepr);
-                return byteRepr;
+                RC retCode = data instanceof ShortBuffer ?
+                        conversionBuffer.put((ShortBuffer) data) : conversionBuffer.put((short[]) data);
+                if (retCode != RC.CODE_SUCCESS) {
+                    logger.warning("No pooled buffer available for the short to byte conversion");
+                    return null;
+                }
+                return conversionBuffer.takeView();
+            case CHAR:
+                if (data instanceof ByteBuffer) {
+                    return encode(((ByteBuffer) data).asCharBuffer(), false);
+                }
+                if (data instanceof CharBuffer) {
+                    return encode((CharBuffer) data, false);
+                }
+                return encode(CharBuffer.wrap((char[]) data), false);
             default:
                 logger.warning("Conversion from type " + producerMediatorType + " is not supported");
                 return null;
         }
     }
 
+    /*
+     encodes the characters into the pooled conversion buffer,
+     a high surrogate at the end waits for the next chunk
+     */
+    private ByteBuffer encode(CharBuffer chars, boolean endOfInput) {
+        int maxBytes = (int) ((chars.remaining() + 1) * encoder.maxBytesPerChar()) + 1;
+
+        ByteBuffer out = conversionBuffer.claim(maxBytes);
+        if (out == null) {
+            logger.warning("No pooled buffer available for encoded characters");
+            return null;
+        }
+        int start = out.position();
+
+        while (hasCarriedChar && (chars.hasRemaining() || endOfInput)) {
+            surrogatePair.clear();
+            surrogatePair.put(carriedChar);
+            if (chars.hasRemaining()) {
+                surrogatePair.put(chars.get());
+            }
+            surrogatePair.flip();
+
+            hasCarriedChar = false;
+            encoder.encode(surrogatePair, out, endOfInput && !chars.hasRemaining());
+            if (surrogatePair.hasRemaining()) {
+                carriedChar = surrogatePair.get();
+                hasCarriedChar = true;
+            }
+        }
+
+        encoder.encode(chars, out, endOfInput);
+        if (endOfInput) {
+            encoder.flush(out);
+            encoder.reset();
+        }
+        else if (chars.hasRemaining()) {
+            carriedChar = chars.get();
+            hasCarriedChar = true;
+        }
+
+        conversionBuffer.commit(out.position() - start);
+
+        return conversionBuffer.takeView();
+    }
+
+    private Object receiveData() {
+        if (producerMediator instanceof IViewMediator) {
+            return ((IViewMediator) producerMediator).getView();
+        }
+        if (producerMediator instanceof IShortViewMediator) {
+            return ((IShortViewMediator) producerMediator).getShortView();
+        }
+        if (producerMediator instanceof ICharViewMediator) {
+            return ((ICharViewMediator) producerMediator).getCharView();
+        }
+        return producerMediator.getData();
+    }
+
+    /*
+     writes the chunk between position and limit, in pieces of bufferSize
+     in the stream write mode
+     */
+    private void writeChunk(ByteBuffer chunk) throws IOException {
+        if (mappedFile != null) {
+            writeMapped(chunk);
+            return;
+        }
+        if (coalesce) {
+            coalesceChunk(chunk);
+            return;
+        }
+        if (writeBehindDepth > 0) {
+            writeBehind(chunk);
+            return;
+        }
+
+        if (chunk.hasArray() && output == stream.getChannel()) {
+            byte[] array = chunk.array();
+            int end = chunk.arrayOffset() + chunk.limit();
+            for (int i = chunk.arrayOffset() + chunk.position(); i < end; i += bufferSize) {
+                stream.write(array, i, Math.min(bufferSize, end - i));
+            }
+            return;
+        }
+
+        int limit = chunk.limit();
+        while (chunk.position() < limit) {
+            chunk.limit(Math.min(limit, chunk.position() + bufferSize));
+            while (chunk.hasRemaining()) {
+                output.write(chunk);
+            }
+        }
+        chunk.limit(limit);
+    }
+
+    /*
+     copies the chunk into the write buffer while less than bufferSize
+     bytes are pending, otherwise the pending bytes and the chunk go out
+     in one gathering write without copying the chunk
+     */
+    private void coalesceChunk(ByteBuffer chunk) throws IOException {
+        if (writeBuffer.position() + chunk.remaining() < Math.min(bufferSize, writeBuffer.capacity())) {
+            writeBuffer.put(chunk);
+            return;
+        }
+
+        writeBuffer.flip();
+        gather[0] = writeBuffer;
+        gather[1] = chunk;
+        writeFully(gather);
+        gather[1] = null;
+
+        if (writeBuffer.capacity() < bufferSize) {
+            ByteBuffer larger = BufferPool.shared().acquire(bufferSize);
+            if (larger != null) {
+                BufferPool.shared().release(writeBuffer);
+                writeBuffer = larger;
+            }
+            else {
+                bufferSize = writeBuffer.capacity();
+            }
+        }
+        writeBuffer.clear();
+    }
+
+    /*
+     the write-behind thread starts with the first chunk, so it is not
+     started when the writer maps the output
+     */
+    private void writeBehind(ByteBuffer chunk) throws IOException {
+        if (writeBehind == null) {
+            writeBehind = WriteBehind.start(output, writeBehindDepth, writeSize);
+            if (writeBehind == null) {
+                throw new IOException("Buffer pool budget does not allow " + (writeBehindDepth + 1) +
+                        " write-behind blocks of " + writeSize + " bytes");
+            }
+        }
+        writeBehind.write(chunk);
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        if (output instanceof GatheringByteChannel) {
+            GatheringByteChannel channel = (GatheringByteChannel) output;
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            return;
+        }
+
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        }
+    }
+
+    private void writeMapped(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (window == null || !window.hasRemaining()) {
+                mapNextWindow();
+            }
+
+            int part = Math.min(window.remaining(), chunk.remaining());
+            window.put(window.position(), chunk, chunk.position(), part);
+            window.position(window.position() + part);
+            chunk.position(chunk.position() + part);
+        }
+    }
+
+    /*
+     maps the window after the current one, the file grows past
+     the expected size if the pipeline produces more than expected
+     */
+    private void mapNextWindow() throws IOException {
+        long start = windowStart;
+        if (window != null) {
+            start += window.capacity();
+            MappedBuffers.unmap(window);
+            window = null;
+        }
+
+        long length = Math.min(mapWindow, mappedLength - start);
+        if (length <= 0) {
+            if (!grown) {
+                logger.warning("Output exceeds its expected size of " + mappedLength + " bytes");
+                grown = true;
+            }
+            length = mapWindow;
+            mappedLength = start + length;
+            mappedFile.setLength(mappedLength);
+        }
+
+        window = mappedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, start, length);
+        windowStart = start;
+    }
+
+    /*
+     releases the last window and cuts the file to the bytes written
+     */
+    private void finishMapped() throws IOException {
+        long written = 0;
+        if (window != null) {
+            written = windowStart + window.position();
+            MappedBuffers.unmap(window);
+            window = null;
+        }
+        mappedFile.setLength(written);
+    }
+
+    /*
+     forces what has been written so far after a chunk, depending on
+     the durability
+     */
+    private void syncWritten(long bytes) throws IOException {
+        if (durability.equals(WriterSemantics.DURABILITY_PERIODIC)) {
+            unsyncedBytes += bytes;
+            if (unsyncedBytes >= syncBytes || System.nanoTime() - lastSync >= syncInterval) {
+                writePending();
+                force(false);
+            }
+        }
+    }
+
+    /*
+     writes out the bytes the writer still holds, the write-behind
+     thread is idle afterwards, so force() covers every byte accepted
+     so far
+     */
+    private void writePending() throws IOException {
+        if (coalesce) {
+            flush();
+        }
+        else if (writeBehind != null) {
+            writeBehind.drain();
+        }
+        if (direct != null) {
+            direct.flush();
+        }
+    }
+
+    /*
+     forces the mapped window and the file, the metadata is only forced
+     at the end of stream
+     */
+    private void force(boolean metaData) throws IOException {
+        long start = System.nanoTime();
+
+        if (window != null) {
+            window.force();
+        }
+        FileChannel channel = mappedFile != null ? mappedFile.getChannel() : stream.getChannel();
+        channel.force(metaData);
+
+        long end = System.nanoTime();
+        ++syncCount;
+        syncNanos += end - start;
+        maxSyncNanos = Math.max(maxSyncNanos, end - start);
+
+        unsyncedBytes = 0;
+        lastSync = end;
+    }
+
+    private String describeSyncs() {
+        return "Writer forced the output " + syncCount + " times (" + durability + "), " +
+                syncNanos / 1_000_000 + " ms in total, " +
+                (syncNanos / syncCount) / 1_000 + " us on average, " +
+                maxSyncNanos / 1_000 + " us at most";
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            output.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
     @Override
     public RC execute() {
 
-        Object data = producerMediator.getData();
+        Object data = receiveData();
 
+        ByteBuffer chunk;
         if (data == null) {
-            return RC.CODE_SUCCESS;
+            if (tuner != null) {
+                logger.info(tuner.describe());
+            }
+            if (producerMediatorType != TYPE.CHAR) {
+                return finish();
+            }
+            chunk = encode(CharBuffer.allocate(0), true);
+            if (chunk == null) {
+                return RC.CODE_FAILED_TO_WRITE;
+            }
         }
-
-        byte[] byteRepr = convertToByte(data);
-        if (byteRepr == null) {
-            logger.warning("Invalid data passed to Writer");
-            return RC.CODE_INVALID_ARGUMENT;
+        else if (data instanceof ByteBuffer && producerMediatorType != TYPE.CHAR) {
+            chunk = (ByteBuffer) data;
+        }
+        else {
+            chunk = convertToByte(data);
+            if (chunk == null) {
+                logger.warning("Invalid data passed to Writer");
+                return RC.CODE_INVALID_ARGUMENT;
+            }
         }
 
-        assert (byteRepr.length <= outputBuffer.capacity());
-        outputBuffer.put(byteRepr);
-
-        if (stream == null) {
+        if (output == null) {
             logger.severe("Invalid output stream");
             return RC.CODE_INVALID_OUTPUT_STREAM;
         }
 
+        long startTime = tuner != null ? System.nanoTime() : 0;
+        int length = chunk.remaining();
+
         try {
-            byte[] bufferBytes = outputBuffer.take();
-            for(int i = 0; i < bufferBytes.length - bufferSize; i+=bufferSize) {
-                stream.write(bufferBytes, i, bufferSize);
+            writeChunk(chunk);
+            syncWritten(length);
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while writing: " + ex.getMessage());
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+
+        if (tuner != null) {
+            tuner.record(length, System.nanoTime() - startTime);
+            bufferSize = tuner.size();
+        }
+
+        return data == null ? finish() : RC.CODE_SUCCESS;
+    }
+
+    /*
+     writes out what is left in the write buffer or waits until the
+     write-behind thread writes everything out, then finishes the encoded
+     stream at the end of stream
+     */
+    private RC finish() {
+        try {
+            if (mappedFile != null) {
+                finishMapped();
+            }
+            else if (coalesce) {
+                flush();
+            }
+            else if (writeBehind != null) {
+                writeBehind.finish();
+            }
+            if (codecEncoder != null) {
+                codecEncoder.close();
+            }
+            if (direct != null) {
+                direct.close();
+            }
+            if (!durability.equals(WriterSemantics.DURABILITY_NONE)) {
+                force(true);
             }
-            int lastChunkSize = bufferBytes.length % bufferSize == 0 ? bufferSize : bufferBytes.length % bufferSize;
-            stream.write(bufferBytes, bufferBytes.length - lastChunkSize, lastChunkSize);
         }
         catch (IOException ex) {
-            logger.severe("IO exception while writing");
+            logger.severe("IO exception while writing: " + ex.getMessage());
             return RC.CODE_FAILED_TO_WRITE;
         }
 
+        if (syncCount > 0) {
+            logger.info(describeSyncs());
+        }
         return RC.CODE_SUCCESS;
     }
+
+    /*
+     copies the rest of the input to the output with transferTo when
+     the pipeline does not change the bytes, so the kernel copies them
+     without the buffers of the pipeline. The durability applies as if
+     the bytes went through execute()
+     */
+    public RC transferFrom(FileChannel input) {
+        if (output == null) {
+            logger.severe("Invalid output stream");
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        long position;
+        long end;
+        try {
+            position = input.position();
+            end = input.size();
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while reading: " + ex.getMessage());
+            return RC.CODE_FAILED_TO_READ;
+        }
+
+        long step = durability.equals(WriterSemantics.DURABILITY_PERIODIC) ? syncBytes : Long.MAX_VALUE;
+        while (position < end) {
+            long transferred;
+            try {
+                transferred = input.transferTo(position, Math.min(step, end - position),
+                        dsyncChannel != null ? dsyncChannel : stream.getChannel());
+            }
+            catch (IOException ex) {
+                if (!isReadable(input, position)) {
+                    logger.severe("IO exception while reading: " + ex.getMessage());
+                    return RC.CODE_FAILED_TO_READ;
+                }
+                logger.severe("IO exception while writing: " + ex.getMessage());
+                return RC.CODE_FAILED_TO_WRITE;
+            }
+            if (transferred == 0) {
+                /* the input has been cut meanwhile */
+                break;
+            }
+            position += transferred;
+
+            try {
+                syncWritten(transferred);
+            }
+            catch (IOException ex) {
+                logger.severe("IO exception while writing: " + ex.getMessage());
+                return RC.CODE_FAILED_TO_WRITE;
+            }
+        }
+
+        try {
+            input.position(position);
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while reading: " + ex.getMessage());
+            return RC.CODE_FAILED_TO_READ;
+        }
+
+        return finish();
+    }
+
+    /*
+     transferTo does not tell which side failed, so the input is read
+     once more where the transfer stopped
+     */
+    private static boolean isReadable(FileChannel input, long position) {
+        try {
+            input.read(ByteBuffer.allocate(1), position);
+            return true;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        conversionBuffer.release();
+        BufferPool.shared().release(writeBuffer);
+        writeBuffer = null;
+        if (writeBehind != null) {
+            writeBehind.stop();
+            writeBehind = null;
+        }
+        if (codecEncoder != null) {
+            codecEncoder.discard();
+        }
+        if (direct != null) {
+            direct.discard();
+        }
+        if (window != null) {
+            MappedBuffers.unmap(window);
+            window = null;
+        }
+        if (dsyncChannel != null) {
+            try {
+                dsyncChannel.close();
+            }
+            catch (IOException ex) {
+                logger.warning("Failed to close the synchronized output: " + ex.getMessage());
+            }
+            dsyncChannel = null;
+        }
+    }
 }
\ No newline at end of file
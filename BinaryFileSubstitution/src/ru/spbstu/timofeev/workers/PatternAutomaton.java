@@ -0,0 +1,527 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.pipeline.RC;
+import ru.spbstu.timofeev.utils.FileParser;
+import ru.spbstu.timofeev.utils.Pair;
+import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/*
+ Aho-Corasick automaton over byte sequences with 16-bit state ids. Bytes
+ that do not occur in any pattern share one input class, so the table has
+ (distinct pattern bytes + 1) columns.
+
+ Only the shallow states, taken in breadth-first order until the table
+ fills DENSE_TABLE_BYTES, get complete transitions, so the states the scan
+ spends most of its time in stay in cache. The table is stored by column,
+ the offset of the column is looked up with the byte and the next state is
+ found without a multiplication on the path from state to state. A deeper
+ state keeps just its trie children and its failure link, a byte without
+ a child follows the failure links until a state has the child or is a
+ dense one.
+
+ A state that ends a pattern is never left, the scan restarts at the root
+ after a match. Such states get no id of their own, a transition into one
+ is coded as matchBase plus the index of the longest pattern ending there.
+ */
+public class PatternAutomaton {
+
+    private static final int NO_MATCH = -1;
+
+    /*
+     states and patterns share the 16-bit codes
+     */
+    private static final int MAX_CODES = 1 << 16;
+
+    private static final int DENSE_TABLE_BYTES = 256 << 10;
+
+    private final int[] classOf;
+
+    /*
+     offset of the column of each byte in the dense table
+     */
+    private final int[] columns;
+
+    /*
+     transitions of the states below denseCount, one column of
+     denseCount codes per input class
+     */
+    private final char[] dense;
+    private final int denseCount;
+
+    /*
+     children and failure links of the states from denseCount on,
+     the children of deep state d are at childStart[d] until
+     childStart[d + 1]
+     */
+    private final char[] childStart;
+    private final char[] childClass;
+    private final char[] childCode;
+    private final char[] fail;
+
+    /*
+     codes from matchBase on stand for the pattern code - matchBase
+     */
+    private final int matchBase;
+
+    private final int[] depths;
+    private final int stateCount;
+
+    private final int[] patternLengths;
+    private final byte[][] replacements;
+
+    private final int maxPatternLength;
+
+    private PatternAutomaton(int[] classOf, int[] columns, char[] dense, int denseCount,
+                             char[] childStart, char[] childClass, char[] childCode, char[] fail,
+                             int matchBase, int[] depths, int stateCount,
+                             int[] patternLengths, byte[][] replacements) {
+        this.classOf = classOf;
+        this.columns = columns;
+        this.dense = dense;
+        this.denseCount = denseCount;
+        this.childStart = childStart;
+        this.childClass = childClass;
+        this.childCode = childCode;
+        this.fail = fail;
+        this.matchBase = matchBase;
+        this.depths = depths;
+        this.stateCount = stateCount;
+        this.patternLengths = patternLengths;
+        this.replacements = replacements;
+
+        int maxLength = 0;
+        for (int length : patternLengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        this.maxPatternLength = maxLength;
+    }
+
+    public int patternCount() {
+        return patternLengths.length;
+    }
+
+    public int stateCount() {
+        return stateCount;
+    }
+
+    /*
+     number of states with dense transitions
+     */
+    public int denseStateCount() {
+        return denseCount;
+    }
+
+    public Scanner newScanner() {
+        return new Scanner();
+    }
+
+    /*
+     follows the failure links of a deep state until a state has a child
+     for the class or is a dense one
+     */
+    private int deepTransition(int state, int inputClass) {
+        while (state >= denseCount) {
+            int deep = state - denseCount;
+            for (int k = childStart[deep]; k < childStart[deep + 1]; ++k) {
+                if (childClass[k] == inputClass) {
+                    return childCode[k];
+                }
+            }
+            state = fail[deep];
+        }
+        return dense[inputClass * denseCount + state];
+    }
+
+    /*
+     Streaming rewriter, keeps the automaton state and the bytes of a
+     possible match between calls, so matches may span chunks.
+     A match is replaced as soon as it ends, the longest pattern wins
+     among those ending at the same byte, and scanning restarts after it.
+     */
+    public class Scanner {
+
+        private int state;
+
+        /*
+         tail of the previous chunks that spells the current state,
+         not emitted yet because it may still become a match
+         */
+        private final byte[] carry;
+        private int carryLength;
+
+        private byte[] output;
+        private int outputLength;
+
+        private byte[] scratch;
+
+        private Scanner() {
+            this.carry = new byte[maxPatternLength];
+            this.output = new byte[16];
+        }
+
+        public byte[] output() {
+            return output;
+        }
+
+        public int outputLength() {
+            return outputLength;
+        }
+
+        public void clearOutput() {
+            outputLength = 0;
+        }
+
+        public void scan(ByteBuffer data) {
+            if (data.hasArray()) {
+                scan(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return;
+            }
+
+            if (scratch == null || scratch.length < data.remaining()) {
+                scratch = new byte[data.remaining()];
+            }
+            data.get(data.position(), scratch, 0, data.remaining());
+            scan(scratch, 0, data.remaining());
+        }
+
+        public void scan(byte[] data, int offset, int length) {
+            final int[] columns = PatternAutomaton.this.columns;
+            final char[] dense = PatternAutomaton.this.dense;
+            final int denseCount = PatternAutomaton.this.denseCount;
+            final int matchBase = PatternAutomaton.this.matchBase;
+
+            int end = offset + length;
+            int state = this.state;
+
+            /*
+             positions below offset refer to the carried bytes
+             */
+            int emitFrom = offset - carryLength;
+
+            for (int i = offset; i < end; ++i) {
+                int next = state < denseCount ?
+                        dense[columns[data[i] & 0xFF] + state] : deepTransition(state, classOf[data[i] & 0xFF]);
+                if (next < matchBase) {
+                    state = next;
+                    continue;
+                }
+
+                int match = next - matchBase;
+                byte[] replacement = replacements[match];
+
+                emit(data, offset, emitFrom, i + 1 - patternLengths[match]);
+                ensureOutput(replacement.length);
+                System.arraycopy(replacement, 0, output, outputLength, replacement.length);
+                outputLength += replacement.length;
+
+                emitFrom = i + 1;
+                state = 0;
+            }
+
+            int depth = depths[state];
+            emit(data, offset, emitFrom, end - depth);
+
+            int carried = Math.max(0, offset - (end - depth));
+            System.arraycopy(carry, carryLength - carried, carry, 0, carried);
+            System.arraycopy(data, end - (depth - carried), carry, carried, depth - carried);
+
+            this.carryLength = depth;
+            this.state = state;
+        }
+
+        /*
+         emits the bytes of an unfinished match, called at the end of stream
+         */
+        public void flush() {
+            ensureOutput(carryLength);
+            System.arraycopy(carry, 0, output, outputLength, carryLength);
+            outputLength += carryLength;
+
+            carryLength = 0;
+            state = 0;
+        }
+
+        private void emit(byte[] data, int offset, int from, int to) {
+            if (to <= from) {
+                return;
+            }
+
+            ensureOutput(to - from);
+
+            if (from < offset) {
+                int carried = Math.min(offset, to) - from;
+                System.arraycopy(carry, carryLength - (offset - from), output, outputLength, carried);
+                outputLength += carried;
+                from += carried;
+                if (from == to) {
+                    return;
+                }
+            }
+
+            System.arraycopy(data, from, output, outputLength, to - from);
+            outputLength += to - from;
+        }
+
+        private void ensureOutput(int extra) {
+            if (outputLength + extra > output.length) {
+                output = Arrays.copyOf(output, Math.max(2 * output.length, outputLength + extra));
+            }
+        }
+    }
+
+    public static Pair<PatternAutomaton, RC> fromFile(String filename, Logger logger) {
+
+        PipelineBaseGrammar dictionaryGrammar = new PipelineBaseGrammar(new String[] {}) {
+
+            @Override
+            public String delimiter() {
+                return "=>";
+            }
+
+            @Override
+            public boolean containsToken(String token) {
+                return true;
+            }
+        } ;
+
+        Pair<HashMap<String, String>, RC> res = FileParser.readMap(
+                filename, dictionaryGrammar, logger
+        );
+        if (res.first == null) {
+            logger.severe("Failed to read a dictionary from " + filename);
+            return new Pair<>(null, res.second);
+        }
+
+        int count = res.first.size();
+        byte[][] patterns = new byte[count][];
+        byte[][] replacements = new byte[count][];
+
+        int k = 0;
+        for (Map.Entry<String, String> entry : res.first.entrySet()) {
+            patterns[k] = parseBytes(entry.getKey());
+            replacements[k] = parseBytes(entry.getValue());
+            if (patterns[k] == null || patterns[k].length == 0 || replacements[k] == null) {
+                logger.severe("Invalid dictionary record: " + entry.getKey() + " => " + entry.getValue());
+                return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+            }
+            ++k;
+        }
+
+        PatternAutomaton automaton = compile(patterns, replacements);
+        if (automaton == null) {
+            logger.severe("Dictionary " + filename + " does not fit into " + MAX_CODES +
+                    " automaton states and patterns");
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        return new Pair<>(automaton, RC.CODE_SUCCESS);
+    }
+
+    /*
+     returns null if the states and the patterns do not fit
+     into the 16-bit codes
+     */
+    public static PatternAutomaton compile(byte[][] patterns, byte[][] replacements) {
+        return compile(patterns, replacements, DENSE_TABLE_BYTES);
+    }
+
+    /*
+     the tests pass a small denseTableBytes to exercise the deep states
+     */
+    static PatternAutomaton compile(byte[][] patterns, byte[][] replacements, int denseTableBytes) {
+        int[] classOf = new int[256];
+        int classCount = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                if (classOf[b & 0xFF] == 0) {
+                    classOf[b & 0xFF] = classCount++;
+                }
+            }
+        }
+
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+
+        /*
+         the trie keeps the children of a state in a list,
+         the states are numbered in the order they are created
+         */
+        int[] firstChild = new int[maxStates];
+        int[] nextSibling = new int[maxStates];
+        int[] label = new int[maxStates];
+        int[] matches = new int[maxStates];
+        int[] depths = new int[maxStates];
+        int[] patternLengths = new int[patterns.length];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(matches, NO_MATCH);
+
+        int states = 1;
+        for (int p = 0; p < patterns.length; ++p) {
+            int s = 0;
+            for (byte b : patterns[p]) {
+                int c = classOf[b & 0xFF];
+                int child = child(firstChild, nextSibling, label, s, c);
+                if (child < 0) {
+                    child = states++;
+                    label[child] = c;
+                    depths[child] = depths[s] + 1;
+                    nextSibling[child] = firstChild[s];
+                    firstChild[s] = child;
+                }
+                s = child;
+            }
+            matches[s] = p;
+            patternLengths[p] = patterns[p].length;
+        }
+
+        /*
+         breadth-first order, failure links and the inherited matches,
+         the states below a match are never reached and left out
+         */
+        int[] order = new int[states];
+        int[] failOf = new int[states];
+        int head = 0;
+        int tail = 0;
+        order[tail++] = 0;
+        while (head < tail) {
+            int s = order[head++];
+            if (matches[s] != NO_MATCH) {
+                continue;
+            }
+            for (int child = firstChild[s]; child >= 0; child = nextSibling[child]) {
+                int f = s == 0 ? -1 : failOf[s];
+                int target = -1;
+                while (f >= 0 && (target = child(firstChild, nextSibling, label, f, label[child])) < 0) {
+                    f = f == 0 ? -1 : failOf[f];
+                }
+                failOf[child] = target >= 0 ? target : 0;
+                if (matches[child] == NO_MATCH) {
+                    matches[child] = matches[failOf[child]];
+                }
+                order[tail++] = child;
+            }
+        }
+
+        /*
+         the states not ending a pattern get ids in breadth-first order
+         */
+        int[] code = new int[states];
+        int nonMatching = 0;
+        for (int k = 0; k < tail; ++k) {
+            int s = order[k];
+            code[s] = matches[s] == NO_MATCH ? nonMatching++ : NO_MATCH;
+        }
+        int matchBase = nonMatching;
+        if (matchBase + patterns.length > MAX_CODES) {
+            return null;
+        }
+        int[] stateOf = new int[nonMatching];
+        for (int k = 0; k < tail; ++k) {
+            int s = order[k];
+            if (code[s] == NO_MATCH) {
+                code[s] = matchBase + matches[s];
+            }
+            else {
+                stateOf[code[s]] = s;
+            }
+        }
+
+        int denseCount = Math.min(nonMatching, Math.max(1, denseTableBytes / (Character.BYTES * classCount)));
+
+        /*
+         a dense state takes the codes of its children and the transitions
+         of its failure state for the other classes, those are filled in
+         already since the failure state is shallower
+         */
+        char[] dense = new char[denseCount * classCount];
+        for (int id = 0; id < denseCount; ++id) {
+            if (id > 0) {
+                int failId = code[failOf[stateOf[id]]];
+                for (int c = 0; c < classCount; ++c) {
+                    dense[c * denseCount + id] = dense[c * denseCount + failId];
+                }
+            }
+            for (int child = firstChild[stateOf[id]]; child >= 0; child = nextSibling[child]) {
+                dense[label[child] * denseCount + id] = (char) code[child];
+            }
+        }
+
+        int[] columns = new int[256];
+        for (int b = 0; b < 256; ++b) {
+            columns[b] = classOf[b] * denseCount;
+        }
+
+        int deepCount = nonMatching - denseCount;
+        char[] childStart = new char[deepCount + 1];
+        char[] fail = new char[deepCount];
+        int childCount = 0;
+        for (int id = denseCount; id < nonMatching; ++id) {
+            for (int child = firstChild[stateOf[id]]; child >= 0; child = nextSibling[child]) {
+                ++childCount;
+            }
+        }
+        char[] childClass = new char[childCount];
+        char[] childCode = new char[childCount];
+
+        int k = 0;
+        for (int id = denseCount; id < nonMatching; ++id) {
+            int s = stateOf[id];
+            childStart[id - denseCount] = (char) k;
+            fail[id - denseCount] = (char) code[failOf[s]];
+            for (int child = firstChild[s]; child >= 0; child = nextSibling[child]) {
+                childClass[k] = (char) label[child];
+                childCode[k] = (char) code[child];
+                ++k;
+            }
+        }
+        childStart[deepCount] = (char) k;
+
+        int[] stateDepths = new int[nonMatching];
+        for (int id = 0; id < nonMatching; ++id) {
+            stateDepths[id] = depths[stateOf[id]];
+        }
+
+        return new PatternAutomaton(classOf, columns, dense, denseCount,
+                childStart, childClass, childCode, fail, matchBase, stateDepths, tail,
+                patternLengths, replacements);
+    }
+
+    private static int child(int[] firstChild, int[] nextSibling, int[] label, int state, int inputClass) {
+        for (int child = firstChild[state]; child >= 0; child = nextSibling[child]) {
+            if (label[child] == inputClass) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     parses 0x followed by an even number of hex digits,
+     returns null if unable to parse correctly
+     */
+    private static byte[] parseBytes(String line) {
+        if (line == null || !line.startsWith("0x") || line.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] result = new byte[(line.length() - 2) / 2];
+
+        try {
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = (byte) Integer.parseInt(line.substring(2 + 2 * i, 4 + 2 * i), 16);
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,253 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.pipeline.*;
+import ru.spbstu.timofeev.config.BaseSemantics;
+import ru.spbstu.timofeev.config.Config;
+import ru.spbstu.timofeev.utils.Buffer;
+import ru.spbstu.timofeev.utils.IViewMediator;
+import ru.spbstu.timofeev.utils.Pair;
+import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+class PatternSubstitutorGrammar extends PipelineBaseGrammar {
+
+    private static final String[] tokens;
+
+    static {
+        PatternSubstitutorSemantics.Fields[] fValues = PatternSubstitutorSemantics.Fields.values();
+
+        tokens = new String[fValues.length];
+
+        for (int i = 0; i < fValues.length; ++i) {
+            tokens[i] = fValues[i].toString();
+        }
+    }
+
+    public PatternSubstitutorGrammar() {
+        super(tokens);
+    }
+}
+
+class PatternSubstitutorSemantics extends BaseSemantics {
+
+    public PatternSubstitutorSemantics(Logger logger) {
+        super(logger);
+    }
+
+    @Override
+    public boolean validateField(String fieldName, String fieldValue) {
+        if (fieldName.equals(Fields.DICTIONARY_FILE.toString())) {
+            return BaseSemantics.validateExistingFile(fieldValue);
+        }
+        else {
+            getLogger().warning("Unknown field validation queried: " + fieldName);
+        }
+        return true;
+    }
+
+    public enum Fields {
+        DICTIONARY_FILE("dictionary_file");
+
+        private final String name;
+
+        Fields(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
+}
+
+public class PatternSubstitutor implements IExecutor, Closeable {
+
+    private final int INITIAL_OUTPUT_BUFFER_CAPACITY = 10;
+    private Buffer outputBuffer;
+
+    PatternAutomaton automaton;
+    PatternAutomaton.Scanner scanner;
+
+    IMediator producerMediator;
+
+    IConsumer consumer;
+
+    final TYPE[] inputTypes = {TYPE.BYTE};
+    final TYPE[] outputTypes = {TYPE.BYTE};
+
+    private final Logger logger;
+
+    private boolean finishing;
+
+    public PatternSubstitutor(Logger logger) {
+        this.logger = logger;
+        this.finishing = false;
+    }
+
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        if (newConsumer == null) {
+            logger.warning("Invalid consumer passed to pattern substitutor");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        consumer = newConsumer;
+
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        if (newProducer == null) {
+            logger.warning("Invalid producer passed to pattern substitutor");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        TYPE[] producerTypes = newProducer.getOutputTypes();
+
+        for (TYPE inputType : inputTypes) {
+            for (TYPE producerType : producerTypes) {
+                if (inputType == producerType) {
+                    producerMediator = newProducer.getMediator(inputType);
+                    return RC.CODE_SUCCESS;
+                }
+            }
+        }
+
+        logger.warning("Pattern substitutor unable to find a common type with producer");
+        return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+    }
+
+    @Override
+    public RC setConfig(String configFileName) {
+        Pair<Config, RC> res = Config.fromFile(configFileName, new PatternSubstitutorGrammar(),
+                new PatternSubstitutorSemantics(logger), logger);
+        if (res.first == null) {
+            logger.severe("Failed to read pattern substitutor config");
+            return res.second;
+        }
+
+        Config cfg = res.first;
+
+        String dictionaryFilename = cfg.getParameter(PatternSubstitutorSemantics.Fields.DICTIONARY_FILE.toString());
+        assert dictionaryFilename != null;
+
+        Pair<PatternAutomaton, RC> automatonRes = PatternAutomaton.fromFile(dictionaryFilename, logger);
+        if (automatonRes.first == null) {
+            logger.severe("Failed to construct a pattern automaton from " + dictionaryFilename);
+            return automatonRes.second;
+        }
+
+        this.automaton = automatonRes.first;
+        this.scanner = automaton.newScanner();
+        this.outputBuffer = new Buffer(INITIAL_OUTPUT_BUFFER_CAPACITY);
+
+        logger.info("Compiled " + automaton.patternCount() + " patterns into " +
+                automaton.stateCount() + " automaton states");
+
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        return outputTypes;
+    }
+
+    @Override
+    public IMediator getMediator(TYPE type) {
+        if (type == TYPE.BYTE) {
+            return new PatternSubstitutor.ByteMediator();
+        }
+        logger.warning("Mediator of type " + type + " is not implemented");
+        return null;
+    }
+
+    class ByteMediator implements IViewMediator {
+        @Override
+        public Object getData() {
+            byte[] data = outputBuffer.take();
+            if (data.length == 0 && finishing) {
+                return null;
+            }
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView();
+            if (!view.hasRemaining() && finishing) {
+                return null;
+            }
+            return view;
+        }
+    }
+
+    private RC processData(Object data) {
+        if (scanner == null) {
+            logger.severe("Config is not set");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+
+        if (data == null) {
+            scanner.flush();
+        }
+        else if (data instanceof ByteBuffer) {
+            scanner.scan((ByteBuffer) data);
+        }
+        else if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            scanner.scan(bytes, 0, bytes.length);
+        }
+        else {
+            logger.severe("Wrong data type passed to pattern substitutor");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        outputBuffer.lend(scanner.output(), 0, scanner.outputLength());
+        scanner.clearOutput();
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private Object receiveData() {
+        if (producerMediator instanceof IViewMediator) {
+            return ((IViewMediator) producerMediator).getView();
+        }
+        return producerMediator.getData();
+    }
+
+    @Override
+    public RC execute() {
+        Object data = receiveData();
+
+        RC retCode = processData(data);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.warning("Pattern substitutor failed to process data");
+            return retCode;
+        }
+
+        while(!outputBuffer.isEmpty()) {
+            retCode = consumer.execute();
+            if (retCode != RC.CODE_SUCCESS) {
+                logger.severe("Pattern substitutor consumer execution error");
+                return retCode;
+            }
+        }
+
+        if (data == null) {
+            finishing = true;
+            consumer.execute();
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public void close() {
+        if (outputBuffer != null) {
+            outputBuffer.release();
+        }
+    }
+}
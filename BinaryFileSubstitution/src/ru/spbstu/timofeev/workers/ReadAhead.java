@@ -0,0 +1,167 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.timofeev.utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ Reads blocks of the input on a separate thread while the previous blocks
+ go down the chain. At most depth filled blocks wait in the queue, one more
+ is in use by the consumer. The end of stream and read errors are passed
+ through the queue as blocks as well.
+
+ The thread is never interrupted, an interrupted FileChannel read would
+ close the input under the reader. It is stopped by an empty block put
+ into the free queue instead, a read in progress is waited for.
+ */
+class ReadAhead implements Runnable {
+
+    static class Block {
+        private final ByteBuffer buffer;
+        private final ByteBuffer view;
+        private int length;
+        private IOException error;
+
+        private Block(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.view = buffer.duplicate();
+        }
+
+        /*
+         view of the block for the consumer, it may move position and limit
+         */
+        ByteBuffer view() {
+            return view;
+        }
+
+        /*
+         number of bytes in the block or -1 at the end of stream
+         */
+        int length() {
+            return length;
+        }
+
+        IOException error() {
+            return error;
+        }
+    }
+
+    private final ReadableByteChannel channel;
+    private final int blockSize;
+
+    private final Block[] blocks;
+    private final ArrayBlockingQueue<Block> filled;
+    private final ArrayBlockingQueue<Block> free;
+
+    private static final Block STOP = new Block(ByteBuffer.allocate(0));
+
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    private ReadAhead(ReadableByteChannel channel, int depth, int blockSize, Block[] blocks) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+
+        filled = new ArrayBlockingQueue<>(depth + 1);
+        free = new ArrayBlockingQueue<>(depth + 2);
+        for (Block block : blocks) {
+            free.add(block);
+        }
+
+        thread = new Thread(this, "reader-read-ahead");
+        thread.setDaemon(true);
+    }
+
+    /*
+     borrows depth + 1 blocks from the pool and starts reading,
+     returns null if the pool budget does not allow the blocks
+     */
+    static ReadAhead start(ReadableByteChannel channel, int depth, int blockSize) {
+        Block[] blocks = new Block[depth + 1];
+        for (int i = 0; i < blocks.length; ++i) {
+            ByteBuffer buffer = BufferPool.shared().acquire(blockSize);
+            if (buffer == null) {
+                for (int j = 0; j < i; ++j) {
+                    BufferPool.shared().release(blocks[j].buffer);
+                }
+                return null;
+            }
+            blocks[i] = new Block(buffer);
+        }
+
+        ReadAhead readAhead = new ReadAhead(channel, depth, blockSize, blocks);
+        readAhead.thread.start();
+        return readAhead;
+    }
+
+    Block take() throws InterruptedException {
+        return filled.take();
+    }
+
+    /*
+     gives a block taken by take() back for reading
+     */
+    void recycle(Block block) {
+        free.add(block);
+    }
+
+    /*
+     stops reading and returns the blocks to the pool, the blocks
+     must not be used afterwards
+     */
+    void stop() {
+        stopped = true;
+        free.add(STOP);
+
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (Block block : blocks) {
+            BufferPool.shared().release(block.buffer);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                Block block = free.take();
+                if (block == STOP) {
+                    return;
+                }
+
+                block.buffer.clear().limit(blockSize);
+                block.error = null;
+                try {
+                    block.length = channel.read(block.buffer);
+                }
+                catch (IOException ex) {
+                    block.error = ex;
+                }
+
+                if (block.length == 0 && block.error == null) {
+                    free.add(block);
+                    continue;
+                }
+
+                filled.put(block);
+
+                if (block.length < 0 || block.error != null) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            /* not interrupted by the reader */
+        }
+    }
+}
@@ -5,29 +5,197 @@ import ru.spbstu.timofeev.utils.FileParser;
 import ru.spbstu.timofeev.utils.Pair;
 import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 public class SubstitutionTable {
 
-    private final HashMap<Byte, Byte> table;
+    private static final int TABLE_SIZE = 256;
+    private static final int SHORT_TABLE_SIZE = 1 << 16;
+
+    /*
+     compiled table layout, all values big endian:
+     magic "SUBT", u16 version, u8 width in bytes, u8 byte order
+     (0 - big, 1 - little endian), i32 entry count, i32 CRC32 of the
+     lookup table, followed by the raw lookup table
+     */
+    private static final int COMPILED_MAGIC = 0x53554254;
+    private static final short COMPILED_VERSION = 1;
+    private static final int COMPILED_HEADER_SIZE = 16;
+
+    /*
+     tables with at most this many non-identity entries are applied with
+     a sparse kernel, denser ones with a lookup. Every key costs the
+     sparse kernels a compare per word or vector, from four keys on the
+     lookup of the same kind is as fast or faster. Without the vector
+     kernels a table like table.txt with its six entries therefore gets
+     the scalar lookup and gains nothing from being sparse
+     */
+    private static final int MAX_SPARSE_ENTRIES = 3;
+
+    /*
+     the vector kernels need the jdk.incubator.vector module, which is
+     only there when the JVM runs with --add-modules jdk.incubator.vector
+     */
+    private static final boolean VECTOR_KERNELS = probeVectorKernels();
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    public enum Width {
+        BYTE,
+        SHORT
+    }
+
+    public enum Kernel {
+        IDENTITY,
+        SPARSE_SWAR,
+        SPARSE_VECTOR,
+        LOOKUP,
+        LOOKUP_VECTOR
+    }
+
+    /*
+     dense lookup table indexed by the unsigned byte value,
+     unmapped bytes map to themselves, null for 16-bit tables
+     */
+    private final byte[] lut;
+
+    /*
+     lookup table indexed by the unsigned short value as it is read
+     from the data in big endian order, null for byte tables
+     */
+    private final short[] shortLut;
+
+    /*
+     byte order the 16-bit lookup table was built for
+     */
+    private final ByteOrder byteOrder;
+
+    /*
+     non-identity keys broadcast to every byte of a long, used by the sparse kernel
+     */
+    private final long[] broadcastKeys;
+
+    /*
+     non-identity keys and their values, used by the sparse vector kernel
+     */
+    private final byte[] sparseKeys;
+    private final byte[] sparseValues;
+
+    private final Kernel kernel;
 
     private final Logger logger;
 
-    private SubstitutionTable(HashMap<Byte, Byte> table, Logger logger) {
-        this.table = table;
+    private SubstitutionTable(byte[] lut, Logger logger) {
+        this(lut, chooseKernel(lut), logger);
+    }
+
+    /*
+     the kernel has to suit the table, the tests compare the kernels
+     on the same table through it
+     */
+    SubstitutionTable(byte[] lut, Kernel kernel, Logger logger) {
+        assert (kernel == Kernel.IDENTITY) == (countMapped(lut) == 0);
+        assert VECTOR_KERNELS || kernel != Kernel.SPARSE_VECTOR && kernel != Kernel.LOOKUP_VECTOR;
+
+        this.lut = lut;
+        this.shortLut = null;
+        this.byteOrder = ByteOrder.BIG_ENDIAN;
         this.logger = logger;
+        this.kernel = kernel;
+
+        int mapped = countMapped(lut);
+        this.broadcastKeys = new long[mapped];
+        this.sparseKeys = new byte[mapped];
+        this.sparseValues = new byte[mapped];
+        for (int i = 0, k = 0; i < TABLE_SIZE; ++i) {
+            if (lut[i] != (byte) i) {
+                broadcastKeys[k] = ONES * i;
+                sparseKeys[k] = (byte) i;
+                sparseValues[k] = lut[i];
+                ++k;
+            }
+        }
     }
 
-    public byte Substitute(byte x) {
-        Byte y = table.get(x);
-        if (y == null) {
-            return x;
+    private static Kernel chooseKernel(byte[] lut) {
+        int mapped = countMapped(lut);
+        if (mapped == 0) {
+            return Kernel.IDENTITY;
         }
-        else {
-            return y;
+        if (VECTOR_KERNELS) {
+            return mapped <= MAX_SPARSE_ENTRIES ? Kernel.SPARSE_VECTOR : Kernel.LOOKUP_VECTOR;
         }
+        return mapped <= MAX_SPARSE_ENTRIES ? Kernel.SPARSE_SWAR : Kernel.LOOKUP;
+    }
+
+    private static int countMapped(byte[] lut) {
+        int mapped = 0;
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            if (lut[i] != (byte) i) {
+                ++mapped;
+            }
+        }
+        return mapped;
+    }
+
+    private static boolean probeVectorKernels() {
+        try {
+            Class.forName("jdk.incubator.vector.ByteVector");
+            return VectorKernels.isUsable();
+        }
+        catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    static boolean hasVectorKernels() {
+        return VECTOR_KERNELS;
+    }
+
+    private SubstitutionTable(short[] shortLut, ByteOrder byteOrder, Logger logger) {
+        this.lut = null;
+        this.shortLut = shortLut;
+        this.byteOrder = byteOrder;
+        this.logger = logger;
+        this.broadcastKeys = new long[0];
+        this.sparseKeys = new byte[0];
+        this.sparseValues = new byte[0];
+
+        boolean identity = true;
+        for (int i = 0; i < SHORT_TABLE_SIZE && identity; ++i) {
+            identity = shortLut[i] == (short) i;
+        }
+        this.kernel = identity ? Kernel.IDENTITY : Kernel.LOOKUP;
+    }
+
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    public Width getWidth() {
+        return lut != null ? Width.BYTE : Width.SHORT;
+    }
+
+    public byte Substitute(byte x) {
+        return lut[x & 0xFF];
     }
 
     public RC Substitute(byte[] data) {
@@ -37,13 +205,309 @@ public class SubstitutionTable {
             return RC.CODE_INVALID_ARGUMENT;
         }
 
-        for (int i = 0; i < data.length; ++i) {
-            data[i] = Substitute(data[i]);
+        return substitute(data, 0, data.length);
+    }
+
+    public RC substitute(byte[] data, int offset, int length) {
+        return substitute(data, offset, data, offset, length);
+    }
+
+    public RC substitute(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        if (src == null || dst == null || length < 0 ||
+                srcOffset < 0 || srcOffset > src.length - length ||
+                dstOffset < 0 || dstOffset > dst.length - length) {
+            logger.warning("Invalid substitution input");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (lut == null) {
+            logger.warning("16-bit substitution table can not be applied to bytes");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        switch (kernel) {
+            case IDENTITY:
+                if (src != dst || srcOffset != dstOffset) {
+                    System.arraycopy(src, srcOffset, dst, dstOffset, length);
+                }
+                break;
+            case SPARSE_SWAR:
+                substituteSparse(src, srcOffset, dst, dstOffset, length);
+                break;
+            case SPARSE_VECTOR: {
+                int done = VectorKernels.sparse(sparseKeys, sparseValues, src, srcOffset, dst, dstOffset, length);
+                substituteLookup(src, srcOffset + done, dst, dstOffset + done, length - done);
+                break;
+            }
+            case LOOKUP_VECTOR: {
+                int done = VectorKernels.lookup(lut, src, srcOffset, dst, dstOffset, length);
+                substituteLookup(src, srcOffset + done, dst, dstOffset + done, length - done);
+                break;
+            }
+            default:
+                substituteLookup(src, srcOffset, dst, dstOffset, length);
+                break;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private void substituteLookup(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        final byte[] lut = this.lut;
+        for (int i = 0; i < length; ++i) {
+            dst[dstOffset + i] = lut[src[srcOffset + i] & 0xFF];
+        }
+    }
+
+    /*
+     checks eight bytes at a time whether any of them is a mapped key
+     and falls back to the lookup only for the words that contain one
+     */
+    private void substituteSparse(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        final long[] keys = this.broadcastKeys;
+        final boolean inPlace = src == dst && srcOffset == dstOffset;
+
+        int i = 0;
+        for (; i <= length - Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(src, srcOffset + i);
+
+            if (containsAny(word, keys)) {
+                substituteLookup(src, srcOffset + i, dst, dstOffset + i, Long.BYTES);
+            }
+            else if (!inPlace) {
+                LONG_VIEW.set(dst, dstOffset + i, word);
+            }
+        }
+
+        substituteLookup(src, srcOffset + i, dst, dstOffset + i, length - i);
+    }
+
+    private static boolean containsAny(long word, long[] keys) {
+        for (long key : keys) {
+            long x = word ^ key;
+            if (((x - ONES) & ~x & HIGHS) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     substitutes bytes between position and limit in place,
+     position and limit are left untouched
+     */
+    public RC substitute(ByteBuffer data) {
+        if (data == null || data.isReadOnly()) {
+            logger.warning("Invalid substitution input");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (data.hasArray()) {
+            int offset = data.arrayOffset() + data.position();
+            return substitute(data.array(), offset, data.remaining());
+        }
+
+        if (lut == null) {
+            logger.warning("16-bit substitution table can not be applied to bytes");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (kernel == Kernel.IDENTITY) {
+            return RC.CODE_SUCCESS;
+        }
+
+        final byte[] lut = this.lut;
+        final long[] keys = this.broadcastKeys;
+
+        int i = data.position();
+        if (kernel == Kernel.SPARSE_SWAR) {
+            /* the order of the caller's buffer stays as it is */
+            ByteBuffer words = data.duplicate().order(ByteOrder.nativeOrder());
+            for (; i <= data.limit() - Long.BYTES; i += Long.BYTES) {
+                if (!containsAny(words.getLong(i), keys)) {
+                    continue;
+                }
+                for (int j = i; j < i + Long.BYTES; ++j) {
+                    data.put(j, lut[data.get(j) & 0xFF]);
+                }
+            }
+        }
+        else if (kernel == Kernel.SPARSE_VECTOR) {
+            i += VectorKernels.sparse(sparseKeys, sparseValues, data, i, data.remaining());
+        }
+        else if (kernel == Kernel.LOOKUP_VECTOR) {
+            i += VectorKernels.lookup(lut, data, i, data.remaining());
+        }
+
+        for (; i < data.limit(); ++i) {
+            data.put(i, lut[data.get(i) & 0xFF]);
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC substitute(short[] data, int offset, int length) {
+        if (data == null || length < 0 || offset < 0 || offset > data.length - length) {
+            logger.warning("Invalid substitution input");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (kernel == Kernel.IDENTITY) {
+            return RC.CODE_SUCCESS;
+        }
+
+        if (shortLut != null) {
+            final short[] shortLut = this.shortLut;
+            for (int i = offset; i < offset + length; ++i) {
+                data[i] = shortLut[data[i] & 0xFFFF];
+            }
+        }
+        else {
+            final byte[] lut = this.lut;
+            for (int i = offset; i < offset + length; ++i) {
+                data[i] = (short) ((lut[(data[i] >>> 8) & 0xFF] << 8) | (lut[data[i] & 0xFF] & 0xFF));
+            }
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     substitutes shorts between position and limit in place,
+     position and limit are left untouched
+     */
+    public RC substitute(ShortBuffer data) {
+        if (data == null || data.isReadOnly()) {
+            logger.warning("Invalid substitution input");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (data.hasArray()) {
+            return substitute(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+
+        if (kernel == Kernel.IDENTITY) {
+            return RC.CODE_SUCCESS;
+        }
+
+        if (shortLut != null) {
+            final short[] shortLut = this.shortLut;
+            for (int i = data.position(); i < data.limit(); ++i) {
+                data.put(i, shortLut[data.get(i) & 0xFFFF]);
+            }
+        }
+        else {
+            final byte[] lut = this.lut;
+            for (int i = data.position(); i < data.limit(); ++i) {
+                short x = data.get(i);
+                data.put(i, (short) ((lut[(x >>> 8) & 0xFF] << 8) | (lut[x & 0xFF] & 0xFF)));
+            }
         }
 
         return RC.CODE_SUCCESS;
     }
 
+    /*
+     substitutes UTF-16 code units between position and limit in place,
+     a 16-bit table maps code units, a byte table maps the units below 256
+     and leaves the others untouched
+     */
+    public RC substitute(CharBuffer data) {
+        if (data == null || data.isReadOnly()) {
+            logger.warning("Invalid substitution input");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (kernel == Kernel.IDENTITY) {
+            return RC.CODE_SUCCESS;
+        }
+
+        if (shortLut != null) {
+            final short[] shortLut = this.shortLut;
+            if (byteOrder == ByteOrder.LITTLE_ENDIAN) {
+                for (int i = data.position(); i < data.limit(); ++i) {
+                    char c = Character.reverseBytes(data.get(i));
+                    data.put(i, Character.reverseBytes((char) shortLut[c]));
+                }
+            }
+            else {
+                for (int i = data.position(); i < data.limit(); ++i) {
+                    data.put(i, (char) shortLut[data.get(i)]);
+                }
+            }
+        }
+        else {
+            final byte[] lut = this.lut;
+            for (int i = data.position(); i < data.limit(); ++i) {
+                char c = data.get(i);
+                if (c < TABLE_SIZE) {
+                    data.put(i, (char) (lut[c] & 0xFF));
+                }
+            }
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     16-bit tables in different byte orders are not composed: the char
+     path undoes the order of each table separately, so no single table
+     with one order substitutes like the two of them
+     */
+    public boolean canCompose(SubstitutionTable next) {
+        return lut != null || next.lut != null || byteOrder == next.byteOrder;
+    }
+
+    /*
+     returns a table equivalent to applying this table and then the next one,
+     a byte table composed with a 16-bit one gives a 16-bit table, null if
+     the tables cannot be composed
+     */
+    public SubstitutionTable compose(SubstitutionTable next) {
+        if (!canCompose(next)) {
+            logger.severe("Cannot compose 16-bit tables with different byte orders");
+            return null;
+        }
+
+        if (lut != null && next.lut != null) {
+            byte[] composed = new byte[TABLE_SIZE];
+
+            for (int i = 0; i < TABLE_SIZE; ++i) {
+                composed[i] = next.lut[lut[i] & 0xFF];
+            }
+
+            return new SubstitutionTable(composed, logger);
+        }
+
+        short[] first = shortLut != null ? shortLut : widen(lut);
+        short[] second = next.shortLut != null ? next.shortLut : widen(next.lut);
+        short[] composed = new short[SHORT_TABLE_SIZE];
+
+        for (int i = 0; i < SHORT_TABLE_SIZE; ++i) {
+            composed[i] = second[first[i] & 0xFFFF];
+        }
+
+        return new SubstitutionTable(composed, shortLut != null ? byteOrder : next.byteOrder, logger);
+    }
+
+    public boolean isIdentity() {
+        return kernel == Kernel.IDENTITY;
+    }
+
+    /*
+     a byte table substitutes both halves of a short independently,
+     so the widened table does not depend on the byte order
+     */
+    private static short[] widen(byte[] lut) {
+        short[] wide = new short[SHORT_TABLE_SIZE];
+
+        for (int i = 0; i < SHORT_TABLE_SIZE; ++i) {
+            wide[i] = (short) ((lut[i >>> 8] << 8) | (lut[i & 0xFF] & 0xFF));
+        }
+
+        return wide;
+    }
+
     private static boolean isValidTable(HashMap<Byte, Byte> map) {
         boolean[] present = new boolean[256];
 
@@ -60,7 +524,35 @@ public class SubstitutionTable {
         return true;
     }
 
+    private static boolean isValidShortTable(HashMap<Short, Short> map) {
+        boolean[] present = new boolean[SHORT_TABLE_SIZE];
+
+        for(Map.Entry<Short, Short> entry: map.entrySet()) {
+            if (!map.containsKey(entry.getValue())) {
+                return false;
+            }
+            if (present[entry.getValue() & 0xFFFF]) {
+                return false;
+            }
+            present[entry.getValue() & 0xFFFF] = true;
+        }
+
+        return true;
+    }
+
     public static Pair<SubstitutionTable, RC> fromFile(String filename, Logger logger) {
+        return fromFile(filename, ByteOrder.BIG_ENDIAN, logger);
+    }
+
+    /*
+     byteOrder is the order 16-bit values are stored in the data,
+     it has no effect on byte tables
+     */
+    public static Pair<SubstitutionTable, RC> fromFile(String filename, ByteOrder byteOrder, Logger logger) {
+
+        if (isCompiledFile(filename)) {
+            return fromCompiledFile(filename, byteOrder, logger);
+        }
 
         PipelineBaseGrammar tableGrammar = new PipelineBaseGrammar(new String[] {}) {
 
@@ -85,6 +577,10 @@ public class SubstitutionTable {
 
         HashMap<String, String> stringTable = res.first;
 
+        if (isShortTable(stringTable)) {
+            return fromShortTable(stringTable, byteOrder, logger);
+        }
+
         HashMap<Byte, Byte> byteTable = StringTableToByte(stringTable);
         if (byteTable == null) {
             logger.severe("Failed to convert table to byte");
@@ -96,11 +592,201 @@ public class SubstitutionTable {
             return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
         }
 
-        SubstitutionTable table = new SubstitutionTable(byteTable, logger);
+        SubstitutionTable table = new SubstitutionTable(compile(byteTable), logger);
 
         return new Pair<>(table, RC.CODE_SUCCESS);
     }
 
+    public RC writeCompiled(String filename, Logger logger) {
+        int width = lut != null ? Byte.BYTES : Short.BYTES;
+        int entries = lut != null ? TABLE_SIZE : SHORT_TABLE_SIZE;
+
+        ByteBuffer body = ByteBuffer.allocate(entries * width);
+        if (lut != null) {
+            body.put(lut);
+        }
+        else {
+            body.asShortBuffer().put(shortLut);
+        }
+        body.rewind();
+
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(COMPILED_HEADER_SIZE);
+        header.putInt(COMPILED_MAGIC)
+                .putShort(COMPILED_VERSION)
+                .put((byte) width)
+                .put((byte) (byteOrder == ByteOrder.LITTLE_ENDIAN ? 1 : 0))
+                .putInt(entries)
+                .putInt((int) crc.getValue());
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] buffers = {header, body};
+            while (body.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while writing a compiled table to " + filename);
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public static RC compileFile(String sourceFilename, String targetFilename, ByteOrder byteOrder, Logger logger) {
+        Pair<SubstitutionTable, RC> res = fromFile(sourceFilename, byteOrder, logger);
+        if (res.first == null) {
+            logger.severe("Failed to read a table from " + sourceFilename);
+            return res.second;
+        }
+        return res.first.writeCompiled(targetFilename, logger);
+    }
+
+    private static boolean isCompiledFile(String filename) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) < 0) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == COMPILED_MAGIC;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static Pair<SubstitutionTable, RC> fromCompiledFile(String filename, ByteOrder byteOrder, Logger logger) {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (IOException ex) {
+            logger.severe("IO exception while mapping a compiled table " + filename);
+            return new Pair<>(null, RC.CODE_FAILED_TO_READ);
+        }
+
+        if (mapped.capacity() < COMPILED_HEADER_SIZE ||
+                mapped.getShort(4) != COMPILED_VERSION) {
+            logger.severe("Unsupported compiled table " + filename);
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        int width = mapped.get(6);
+        ByteOrder tableOrder = mapped.get(7) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        int entries = mapped.getInt(8);
+        int checksum = mapped.getInt(12);
+
+        boolean byteTable = width == Byte.BYTES && entries == TABLE_SIZE;
+        boolean shortTable = width == Short.BYTES && entries == SHORT_TABLE_SIZE;
+        if (!byteTable && !shortTable ||
+                mapped.capacity() != COMPILED_HEADER_SIZE + width * entries) {
+            logger.severe("Corrupted compiled table " + filename);
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        ByteBuffer body = mapped.position(COMPILED_HEADER_SIZE).slice();
+
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            logger.severe("Checksum mismatch in compiled table " + filename);
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        if (byteTable) {
+            byte[] lut = new byte[TABLE_SIZE];
+            body.get(lut);
+            return new Pair<>(new SubstitutionTable(lut, logger), RC.CODE_SUCCESS);
+        }
+
+        short[] shortLut = new short[SHORT_TABLE_SIZE];
+        body.asShortBuffer().get(shortLut);
+        if (tableOrder != byteOrder) {
+            shortLut = swapBytes(shortLut);
+        }
+
+        return new Pair<>(new SubstitutionTable(shortLut, byteOrder, logger), RC.CODE_SUCCESS);
+    }
+
+    /*
+     converts a 16-bit lookup table between byte orders
+     */
+    private static short[] swapBytes(short[] lut) {
+        short[] swapped = new short[SHORT_TABLE_SIZE];
+
+        for (int i = 0; i < SHORT_TABLE_SIZE; ++i) {
+            swapped[Short.reverseBytes((short) i) & 0xFFFF] = Short.reverseBytes(lut[i]);
+        }
+
+        return swapped;
+    }
+
+    private static Pair<SubstitutionTable, RC> fromShortTable(HashMap<String, String> stringTable,
+                                                              ByteOrder byteOrder, Logger logger) {
+        HashMap<Short, Short> shortTable = StringTableToShort(stringTable);
+        if (shortTable == null) {
+            logger.severe("Failed to convert table to short");
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        if (!isValidShortTable(shortTable)) {
+            logger.severe("Invalid mapping");
+            return new Pair<>(null, RC.CODE_CONFIG_SEMANTIC_ERROR);
+        }
+
+        SubstitutionTable table = new SubstitutionTable(compileShort(shortTable, byteOrder), byteOrder, logger);
+
+        return new Pair<>(table, RC.CODE_SUCCESS);
+    }
+
+    private static boolean isShortTable(HashMap<String, String> stringTable) {
+        for (String key : stringTable.keySet()) {
+            return key.length() == 6;
+        }
+        return false;
+    }
+
+    /*
+     data is read as big endian shorts, so for little endian data
+     both keys and values are stored byte-swapped
+     */
+    private static short[] compileShort(HashMap<Short, Short> map, ByteOrder byteOrder) {
+        short[] lut = new short[SHORT_TABLE_SIZE];
+
+        for (int i = 0; i < SHORT_TABLE_SIZE; ++i) {
+            lut[i] = (short) i;
+        }
+
+        boolean swap = byteOrder == ByteOrder.LITTLE_ENDIAN;
+        for (Map.Entry<Short, Short> entry : map.entrySet()) {
+            short key = swap ? Short.reverseBytes(entry.getKey()) : entry.getKey();
+            short value = swap ? Short.reverseBytes(entry.getValue()) : entry.getValue();
+            lut[key & 0xFFFF] = value;
+        }
+
+        return lut;
+    }
+
+    private static byte[] compile(HashMap<Byte, Byte> map) {
+        byte[] lut = new byte[TABLE_SIZE];
+
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            lut[i] = (byte) i;
+        }
+
+        for (Map.Entry<Byte, Byte> entry : map.entrySet()) {
+            lut[entry.getKey() & 0xFF] = entry.getValue();
+        }
+
+        return lut;
+    }
+
     private static HashMap<Byte, Byte> StringTableToByte(HashMap<String, String> stringTable) {
         HashMap<Byte, Byte> byteTable = new HashMap<>();
 
@@ -116,6 +802,42 @@ public class SubstitutionTable {
         return byteTable;
     }
 
+    private static HashMap<Short, Short> StringTableToShort(HashMap<String, String> stringTable) {
+        HashMap<Short, Short> shortTable = new HashMap<>();
+
+        for (Map.Entry<String, String> entry:stringTable.entrySet()) {
+            Short key = parseShort(entry.getKey());
+            Short value = parseShort(entry.getValue());
+            if (key == null || value == null) {
+                return null;
+            }
+            shortTable.put(key, value);
+        }
+
+        return shortTable;
+    }
+
+    /*
+     returns null if unable to parse correctly
+     */
+    private static Short parseShort(String line) {
+
+        if (line == null || line.length() != 6 ||
+                !line.startsWith("0x")) {
+            return null;
+        }
+
+        short result;
+
+        try {
+            result = (short) Integer.parseInt(line.substring(2), 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        return result;
+    }
+
     /*
      returns null if unable to parse correctly
      */
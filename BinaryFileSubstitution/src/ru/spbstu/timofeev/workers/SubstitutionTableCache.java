@@ -0,0 +1,96 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.pipeline.RC;
+import ru.spbstu.timofeev.utils.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/*
+ Process-wide LRU cache of parsed substitution tables. Entries are keyed
+ by the canonical path, size and modification time of the table file,
+ so an edited file is parsed again. Tables are immutable and may be
+ shared between steps and threads.
+ */
+public class SubstitutionTableCache {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final SubstitutionTableCache shared = new SubstitutionTableCache(DEFAULT_CAPACITY);
+
+    private final LinkedHashMap<String, SubstitutionTable> tables;
+
+    private long hits;
+    private long misses;
+
+    public SubstitutionTableCache(int capacity) {
+        this.tables = new LinkedHashMap<String, SubstitutionTable>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SubstitutionTable> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public static SubstitutionTableCache shared() {
+        return shared;
+    }
+
+    public Pair<SubstitutionTable, RC> load(String filename, ByteOrder byteOrder, Logger logger) {
+        String key = makeKey(filename, byteOrder);
+        if (key == null) {
+            logger.warning("Failed to resolve table file " + filename);
+            return SubstitutionTable.fromFile(filename, byteOrder, logger);
+        }
+
+        synchronized (this) {
+            SubstitutionTable table = tables.get(key);
+            if (table != null) {
+                ++hits;
+                return new Pair<>(table, RC.CODE_SUCCESS);
+            }
+            ++misses;
+        }
+
+        Pair<SubstitutionTable, RC> res = SubstitutionTable.fromFile(filename, byteOrder, logger);
+        if (res.first != null) {
+            synchronized (this) {
+                tables.put(key, res.first);
+            }
+        }
+
+        return res;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return tables.size();
+    }
+
+    public synchronized void clear() {
+        tables.clear();
+    }
+
+    private static String makeKey(String filename, ByteOrder byteOrder) {
+        File file = new File(filename);
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        return path + "|" + file.length() + "|" + file.lastModified() + "|" + byteOrder;
+    }
+}
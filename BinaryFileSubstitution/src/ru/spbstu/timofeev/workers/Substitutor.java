@@ -4,10 +4,17 @@ import ru.spbstu.pipeline.*;
 import ru.spbstu.timofeev.config.BaseSemantics;
 import ru.spbstu.timofeev.config.Config;
 import ru.spbstu.timofeev.utils.Buffer;
+import ru.spbstu.timofeev.utils.ICharViewMediator;
+import ru.spbstu.timofeev.utils.IShortViewMediator;
+import ru.spbstu.timofeev.utils.IViewMediator;
 import ru.spbstu.timofeev.utils.Pair;
 import ru.spbstu.timofeev.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
 import java.util.logging.Logger;
 
 class SubstitutorGrammar extends PipelineBaseGrammar {
@@ -40,14 +47,32 @@ class SubstitutorSemantics extends BaseSemantics {
         if (fieldName.equals(Fields.TABLE_FILE.toString())) {
             return BaseSemantics.validateExistingFile(fieldValue);
         }
+        else if (fieldName.equals(Fields.BYTE_ORDER.toString())) {
+            return parseByteOrder(fieldValue) != null;
+        }
         else {
             getLogger().warning("Unknown field validation queried: " + fieldName);
         }
         return true;
     }
 
+    public static ByteOrder parseByteOrder(String value) {
+        if (value == null) {
+            return null;
+        }
+        switch (value) {
+            case "big_endian":
+                return ByteOrder.BIG_ENDIAN;
+            case "little_endian":
+                return ByteOrder.LITTLE_ENDIAN;
+            default:
+                return null;
+        }
+    }
+
     public enum Fields {
-        TABLE_FILE("table_file");
+        TABLE_FILE("table_file"),
+        BYTE_ORDER("byte_order");
 
         private final String name;
 
@@ -61,7 +86,7 @@ class SubstitutorSemantics extends BaseSemantics {
     }
 }
 
-public class Substitutor implements IExecutor {
+public class Substitutor implements IExecutor, Closeable {
 
     private final int INITIAL_OUTPUT_BUFFER_CAPACITY = 10;
     private Buffer outputBuffer;
@@ -73,8 +98,10 @@ public class Substitutor implements IExecutor {
 
     IConsumer consumer;
 
-    final TYPE[] inputTypes = {TYPE.BYTE, TYPE.SHORT};
+    final TYPE[] byteInputTypes = {TYPE.BYTE, TYPE.SHORT, TYPE.CHAR};
+    final TYPE[] shortInputTypes = {TYPE.SHORT, TYPE.CHAR};
     final TYPE[] outputTypes = {TYPE.BYTE, TYPE.SHORT};
+    final TYPE[] charOutputTypes = {TYPE.CHAR};
 
     private final Logger logger;
 
@@ -105,6 +132,9 @@ public class Substitutor implements IExecutor {
 
         TYPE[] producerTypes = newProducer.getOutputTypes();
 
+        TYPE[] inputTypes = table != null && table.getWidth() == SubstitutionTable.Width.SHORT ?
+                shortInputTypes : byteInputTypes;
+
         for (TYPE inputType : inputTypes) {
             for (TYPE producerType : producerTypes) {
                 if (inputType == producerType) {
@@ -132,13 +162,35 @@ public class Substitutor implements IExecutor {
         String tableFilename = cfg.getParameter(SubstitutorSemantics.Fields.TABLE_FILE.toString());
         assert  tableFilename != null;
 
-        Pair<SubstitutionTable, RC> tableRes = SubstitutionTable.fromFile(tableFilename, logger);
+        ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+        String byteOrderName = cfg.getParameter(SubstitutorSemantics.Fields.BYTE_ORDER.toString());
+        if (byteOrderName != null) {
+            byteOrder = SubstitutorSemantics.parseByteOrder(byteOrderName);
+        }
+
+        Pair<SubstitutionTable, RC> tableRes = SubstitutionTableCache.shared().load(tableFilename, byteOrder, logger);
         if (tableRes.first == null) {
             logger.severe("Failed to construct a substitution table from " + tableFilename);
             return tableRes.second;
         }
 
-        this.table = tableRes.first;
+        return setTable(tableRes.first);
+    }
+
+    public SubstitutionTable getTable() {
+        return table;
+    }
+
+    public RC setTable(SubstitutionTable newTable) {
+        if (newTable == null) {
+            logger.warning("Invalid substitution table passed to substitutor");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        this.table = newTable;
+        if (outputBuffer != null) {
+            outputBuffer.release();
+        }
         this.outputBuffer = new Buffer(INITIAL_OUTPUT_BUFFER_CAPACITY);
 
         return RC.CODE_SUCCESS;
@@ -146,7 +198,7 @@ public class Substitutor implements IExecutor {
 
     @Override
     public TYPE[] getOutputTypes() {
-        return outputTypes;
+        return producerMediatorType == TYPE.CHAR ? charOutputTypes : outputTypes;
     }
 
     @Override
@@ -156,13 +208,15 @@ public class Substitutor implements IExecutor {
                 return new Substitutor.ByteMediator();
             case SHORT:
                 return new Substitutor.ShortMediator();
+            case CHAR:
+                return new Substitutor.CharMediator();
             default:
                 logger.warning("Mediator of type " + type + " is not implemented");
                 return null;
         }
     }
 
-    class ByteMediator implements IMediator {
+    class ByteMediator implements IViewMediator {
         @Override
         public Object getData() {
             byte[] data = outputBuffer.take();
@@ -171,17 +225,83 @@ public class Substitutor implements IExecutor {
             }
             return data;
         }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView();
+            if (!view.hasRemaining() && finishing) {
+                return null;
+            }
+            return view;
+        }
     }
 
-    class ShortMediator implements IMediator {
+    class ShortMediator implements IViewMediator, IShortViewMediator {
         @Override
         public Object getData() {
             short[] data = outputBuffer.takeShort();
             if (data.length == 0 && finishing) {
+                reportCarried();
                 return null;
             }
             return data;
         }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView(Short.BYTES);
+            if (!view.hasRemaining() && finishing) {
+                reportCarried();
+                return null;
+            }
+            return view;
+        }
+
+        @Override
+        public ShortBuffer getShortView() {
+            ShortBuffer view = outputBuffer.takeShortView();
+            if (!view.hasRemaining() && finishing) {
+                reportCarried();
+                return null;
+            }
+            return view;
+        }
+
+        private void reportCarried() {
+            if (outputBuffer.carried() > 0) {
+                logger.warning("Substituted data ends with " + outputBuffer.carried() +
+                        " byte(s) that do not form a whole short, they are dropped");
+            }
+        }
+    }
+
+    class CharMediator implements IViewMediator, ICharViewMediator {
+        @Override
+        public Object getData() {
+            char[] data = outputBuffer.takeChar();
+            if (data.length == 0 && finishing) {
+                return null;
+            }
+            return data;
+        }
+
+        @Override
+        public ByteBuffer getView() {
+            ByteBuffer view = outputBuffer.takeView(Character.BYTES);
+            if (!view.hasRemaining() && finishing) {
+                return null;
+            }
+            return view;
+        }
+
+        @Override
+        public CharBuffer getCharView() {
+            CharBuffer view = outputBuffer.takeCharView();
+            if (!view.hasRemaining() && finishing) {
+                return null;
+            }
+            return view;
+        }
     }
 
     private RC processByte(byte[] data) {
@@ -190,13 +310,62 @@ public class Substitutor implements IExecutor {
             return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
         }
 
-        RC retCode = table.Substitute(data);
+        RC retCode = table.substitute(data, 0, data.length);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("Substitution error");
+            return retCode;
+        }
+
+        outputBuffer.lend(data, 0, data.length);
+
+        return RC.CODE_SUCCESS;
+    }
+
+    /*
+     substitutes the bytes, shorts or characters of the view in place and
+     lends the same bytes to the consumer. Read-only views, such as slices
+     of a mapped input, are copied into the own storage once instead
+     */
+    private RC processView(ByteBuffer view) {
+        if (table == null) {
+            logger.severe("Config is not set");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+
+        boolean copied = view.isReadOnly();
+        if (copied) {
+            ByteBuffer claimed = outputBuffer.claim(view.remaining());
+            if (claimed == null) {
+                logger.severe("No pooled buffer available for the substituted data");
+                return RC.CODE_INVALID_ARGUMENT;
+            }
+            int start = claimed.position();
+            claimed.put(view);
+            view = claimed.position(start);
+        }
+
+        RC retCode;
+        switch (producerMediatorType) {
+            case SHORT:
+                retCode = table.substitute(view.asShortBuffer());
+                break;
+            case CHAR:
+                retCode = table.substitute(view.asCharBuffer());
+                break;
+            default:
+                retCode = table.substitute(view);
+        }
         if (retCode != RC.CODE_SUCCESS) {
             logger.severe("Substitution error");
             return retCode;
         }
 
-        outputBuffer.put(data);
+        if (copied) {
+            outputBuffer.commit(view.remaining());
+        }
+        else {
+            outputBuffer.lend(view);
+        }
 
         return RC.CODE_SUCCESS;
     }
@@ -207,17 +376,59 @@ public class Substitutor implements IExecutor {
             return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
         }
 
-        byte[] byteRepr = new byte[2 * data.length];
-        ByteBuffer.wrap(byteRepr).asShortBuffer().put(data);
+        RC retCode = table.substitute(data, 0, data.length);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("Substitution error");
+            return retCode;
+        }
+
+        retCode = outputBuffer.put(data);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("No pooled buffer available for the substituted data");
+            return retCode;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC processShortBuffer(ShortBuffer data) {
+        if (table == null) {
+            logger.severe("Config is not set");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
 
-        RC retCode = table.Substitute(byteRepr);
+        RC retCode = table.substitute(data);
         if (retCode != RC.CODE_SUCCESS) {
             logger.severe("Substitution error");
             return retCode;
         }
 
-        assert (byteRepr.length <= outputBuffer.capacity());
-        outputBuffer.put(byteRepr);
+        retCode = outputBuffer.put(data);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("No pooled buffer available for the substituted data");
+            return retCode;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC processCharBuffer(CharBuffer data) {
+        if (table == null) {
+            logger.severe("Config is not set");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+
+        RC retCode = table.substitute(data);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("Substitution error");
+            return retCode;
+        }
+
+        retCode = outputBuffer.put(data);
+        if (retCode != RC.CODE_SUCCESS) {
+            logger.severe("No pooled buffer available for the substituted data");
+            return retCode;
+        }
 
         return RC.CODE_SUCCESS;
     }
@@ -232,10 +443,34 @@ public class Substitutor implements IExecutor {
         try {
             switch (producerMediatorType) {
                 case BYTE:
-                    retCode = processByte((byte[])data);
+                    if (data instanceof ByteBuffer) {
+                        retCode = processView((ByteBuffer)data);
+                    }
+                    else {
+                        retCode = processByte((byte[])data);
+                    }
                     break;
                 case SHORT:
-                    retCode = processShort((short[])data);
+                    if (data instanceof ByteBuffer) {
+                        retCode = processView((ByteBuffer)data);
+                    }
+                    else if (data instanceof ShortBuffer) {
+                        retCode = processShortBuffer((ShortBuffer)data);
+                    }
+                    else {
+                        retCode = processShort((short[])data);
+                    }
+                    break;
+                case CHAR:
+                    if (data instanceof ByteBuffer) {
+                        retCode = processView((ByteBuffer)data);
+                    }
+                    else if (data instanceof CharBuffer) {
+                        retCode = processCharBuffer((CharBuffer)data);
+                    }
+                    else {
+                        retCode = processCharBuffer(CharBuffer.wrap((char[])data));
+                    }
                     break;
                 default:
                     logger.warning("Unknown mediator type");
@@ -249,9 +484,22 @@ public class Substitutor implements IExecutor {
         return retCode;
     }
 
+    private Object receiveData() {
+        if (producerMediator instanceof IViewMediator) {
+            return ((IViewMediator) producerMediator).getView();
+        }
+        if (producerMediator instanceof IShortViewMediator) {
+            return ((IShortViewMediator) producerMediator).getShortView();
+        }
+        if (producerMediator instanceof ICharViewMediator) {
+            return ((ICharViewMediator) producerMediator).getCharView();
+        }
+        return producerMediator.getData();
+    }
+
     @Override
     public RC execute() {
-        Object data = producerMediator.getData();
+        Object data = receiveData();
 
         RC retCode = processData(data);
         if (retCode != RC.CODE_SUCCESS) {
@@ -274,4 +522,11 @@ public class Substitutor implements IExecutor {
 
         return RC.CODE_SUCCESS;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void close() {
+        if (outputBuffer != null) {
+            outputBuffer.release();
+        }
+    }
+}
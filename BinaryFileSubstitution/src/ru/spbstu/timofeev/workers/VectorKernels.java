@@ -0,0 +1,139 @@
+package ru.spbstu.timofeev.workers;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ Byte substitution kernels on jdk.incubator.vector. The class only links
+ when the JVM runs with --add-modules jdk.incubator.vector, SubstitutionTable
+ probes it once and keeps to the scalar kernels otherwise. Both kernels
+ leave the bytes after the last whole vector to the caller.
+
+ The lookup kernel splits the 256-entry table into sub-tables of one
+ vector each. The low bits of every byte select a lane of each sub-table,
+ the high bits select the sub-table, so a 64-lane vector needs four lane
+ selections and three blends. The sparse kernel compares every vector with
+ each mapped key and blends in its value, vectors without any key are not
+ stored back in place.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    private static final int SUB_TABLES = 256 / Math.min(LANES, 256);
+    private static final int SUB_TABLE_SHIFT = Integer.numberOfTrailingZeros(Math.min(LANES, 256));
+
+    /*
+     fewer lanes need too many sub-tables to beat the scalar lookup
+     */
+    private static final int MIN_LANES = 16;
+
+    private VectorKernels() {
+    }
+
+    static boolean isUsable() {
+        return LANES >= MIN_LANES;
+    }
+
+    static int laneCount() {
+        return LANES;
+    }
+
+    /*
+     returns the number of bytes substituted, a multiple of laneCount()
+     */
+    static int lookup(byte[] lut, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        ByteVector[] tables = subTables(lut);
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += LANES) {
+            ByteVector data = ByteVector.fromArray(SPECIES, src, srcOffset + i);
+            lookup(tables, data).intoArray(dst, dstOffset + i);
+        }
+        return bound;
+    }
+
+    static int lookup(byte[] lut, ByteBuffer data, int offset, int length) {
+        ByteVector[] tables = subTables(lut);
+        int bound = SPECIES.loopBound(length);
+        for (int i = offset; i < offset + bound; i += LANES) {
+            ByteVector vector = ByteVector.fromByteBuffer(SPECIES, data, i, ByteOrder.nativeOrder());
+            lookup(tables, vector).intoByteBuffer(data, i, ByteOrder.nativeOrder());
+        }
+        return bound;
+    }
+
+    private static ByteVector lookup(ByteVector[] tables, ByteVector data) {
+        ByteVector index = data.and((byte) (LANES - 1));
+        if (SUB_TABLES == 1) {
+            return index.selectFrom(tables[0]);
+        }
+
+        ByteVector table = data.lanewise(VectorOperators.LSHR, SUB_TABLE_SHIFT);
+        ByteVector result = index.selectFrom(tables[0]);
+        for (int k = 1; k < SUB_TABLES; ++k) {
+            result = result.blend(index.selectFrom(tables[k]), table.compare(VectorOperators.EQ, (byte) k));
+        }
+        return result;
+    }
+
+    private static ByteVector[] subTables(byte[] lut) {
+        ByteVector[] tables = new ByteVector[SUB_TABLES];
+        for (int k = 0; k < SUB_TABLES; ++k) {
+            tables[k] = ByteVector.fromArray(SPECIES, lut, k * LANES);
+        }
+        return tables;
+    }
+
+    /*
+     keys and values hold the mapped entries of the table,
+     returns the number of bytes substituted
+     */
+    static int sparse(byte[] keys, byte[] values, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        boolean inPlace = src == dst && srcOffset == dstOffset;
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += LANES) {
+            ByteVector data = ByteVector.fromArray(SPECIES, src, srcOffset + i);
+
+            VectorMask<Byte> found = data.compare(VectorOperators.EQ, keys[0]);
+            ByteVector result = data.blend(values[0], found);
+            for (int k = 1; k < keys.length; ++k) {
+                VectorMask<Byte> key = data.compare(VectorOperators.EQ, keys[k]);
+                result = result.blend(values[k], key);
+                found = found.or(key);
+            }
+
+            if (found.anyTrue()) {
+                result.intoArray(dst, dstOffset + i);
+            }
+            else if (!inPlace) {
+                data.intoArray(dst, dstOffset + i);
+            }
+        }
+        return bound;
+    }
+
+    static int sparse(byte[] keys, byte[] values, ByteBuffer data, int offset, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = offset; i < offset + bound; i += LANES) {
+            ByteVector vector = ByteVector.fromByteBuffer(SPECIES, data, i, ByteOrder.nativeOrder());
+
+            VectorMask<Byte> found = vector.compare(VectorOperators.EQ, keys[0]);
+            ByteVector result = vector.blend(values[0], found);
+            for (int k = 1; k < keys.length; ++k) {
+                VectorMask<Byte> key = vector.compare(VectorOperators.EQ, keys[k]);
+                result = result.blend(values[k], key);
+                found = found.or(key);
+            }
+
+            if (found.anyTrue()) {
+                result.intoByteBuffer(data, i, ByteOrder.nativeOrder());
+            }
+        }
+        return bound;
+    }
+}
@@ -0,0 +1,229 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.timofeev.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/*
+ Writes blocks of the output on a separate thread while the pipeline fills
+ the next ones. Chunks are copied into the blocks since they belong to the
+ writer only until its execute() returns. At most depth filled blocks wait
+ in the queue, one more is being filled. After the first write error the
+ thread only gives the blocks back, the error is thrown by the next call
+ on the pipeline side.
+
+ The thread is never interrupted, an interrupted FileChannel write would
+ close the channel. It is stopped by an empty end block instead.
+ */
+class WriteBehind implements Runnable {
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer DRAIN = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer[] blocks;
+    private final ArrayBlockingQueue<ByteBuffer> filled;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    private ByteBuffer current;
+
+    private final Thread thread;
+    private final Semaphore drained = new Semaphore(0);
+    private volatile IOException error;
+    private volatile boolean discarding;
+    private boolean ended;
+
+    private WriteBehind(WritableByteChannel channel, int depth, ByteBuffer[] blocks) {
+        this.channel = channel;
+        this.blocks = blocks;
+
+        filled = new ArrayBlockingQueue<>(depth + 2);
+        free = new ArrayBlockingQueue<>(depth + 1);
+        for (ByteBuffer block : blocks) {
+            free.add(block);
+        }
+
+        thread = new Thread(this, "writer-write-behind");
+        thread.setDaemon(true);
+    }
+
+    /*
+     borrows depth + 1 blocks from the pool and starts the thread,
+     returns null if the pool budget does not allow the blocks
+     */
+    static WriteBehind start(WritableByteChannel channel, int depth, int blockSize) {
+        ByteBuffer[] blocks = new ByteBuffer[depth + 1];
+        for (int i = 0; i < blocks.length; ++i) {
+            blocks[i] = BufferPool.shared().acquire(blockSize);
+            if (blocks[i] == null) {
+                for (int j = 0; j < i; ++j) {
+                    BufferPool.shared().release(blocks[j]);
+                }
+                return null;
+            }
+        }
+
+        WriteBehind writeBehind = new WriteBehind(channel, depth, blocks);
+        writeBehind.thread.start();
+        return writeBehind;
+    }
+
+    /*
+     copies the chunk between position and limit into the blocks,
+     every block that gets full is queued for writing
+     */
+    void write(ByteBuffer chunk) throws IOException {
+        checkError();
+
+        while (chunk.hasRemaining()) {
+            if (current == null) {
+                current = take(free);
+            }
+
+            int part = Math.min(current.remaining(), chunk.remaining());
+            current.put(current.position(), chunk, chunk.position(), part);
+            current.position(current.position() + part);
+            chunk.position(chunk.position() + part);
+
+            if (!current.hasRemaining()) {
+                queue(current);
+                current = null;
+            }
+        }
+    }
+
+    /*
+     queues the last block and waits until everything is written
+     */
+    void finish() throws IOException {
+        if (current != null && current.position() > 0) {
+            queue(current);
+            current = null;
+        }
+        end();
+        checkError();
+    }
+
+    /*
+     queues the block being filled and waits until every queued block
+     is written, the thread stays idle until the next block
+     */
+    void drain() throws IOException {
+        checkError();
+        if (current != null && current.position() > 0) {
+            queue(current);
+            current = null;
+        }
+
+        try {
+            filled.put(DRAIN);
+            drained.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write-behind thread");
+        }
+        checkError();
+    }
+
+    /*
+     drops the blocks not written yet, stops the thread and
+     returns the blocks to the pool
+     */
+    void stop() {
+        discarding = true;
+        try {
+            end();
+        }
+        catch (InterruptedIOException ex) {
+            return;
+        }
+
+        for (ByteBuffer block : blocks) {
+            BufferPool.shared().release(block);
+        }
+    }
+
+    private void end() throws InterruptedIOException {
+        if (ended) {
+            return;
+        }
+
+        try {
+            filled.put(END);
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write-behind thread");
+        }
+        ended = true;
+    }
+
+    private void checkError() throws IOException {
+        IOException ex = error;
+        if (ex != null) {
+            throw new IOException("Write-behind failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void queue(ByteBuffer block) throws InterruptedIOException {
+        block.flip();
+        try {
+            filled.put(block);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing a block");
+        }
+    }
+
+    private static ByteBuffer take(ArrayBlockingQueue<ByteBuffer> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free block");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer block = filled.take();
+                if (block == END) {
+                    return;
+                }
+                if (block == DRAIN) {
+                    drained.release();
+                    continue;
+                }
+
+                if (error == null && !discarding) {
+                    try {
+                        while (block.hasRemaining()) {
+                            channel.write(block);
+                        }
+                    }
+                    catch (IOException ex) {
+                        error = ex;
+                    }
+                }
+
+                block.clear();
+                free.put(block);
+            }
+        }
+        catch (InterruptedException ex) {
+            /* not interrupted by the writer */
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.pipeline.RC;
+import ru.spbstu.timofeev.PipelineManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/*
+ Cost of each writer durability mode: a reader, one substitutor and the
+ writer run over the same input for every mode, several times each, and
+ the best and the worst run are printed with the force statistics the
+ writer logs. The files are created in the directory given as the first
+ argument, which should be on the device to measure, the input size in
+ MiB is the second argument.
+ */
+public class DurabilityBenchmark {
+
+    private static final int DEFAULT_SIZE_MIB = 200;
+    private static final int RUNS = 3;
+
+    private static final String[][] MODES = {
+            {"none", ""},
+            {"end", "durability = end"},
+            {"periodic", "durability = periodic"},
+            {"periodic, sync_bytes = 4M", "durability = periodic\nsync_bytes = 4M"},
+            {"dsync", "durability = dsync"},
+    };
+
+    private static final Logger logger = Logger.getLogger("DurabilityBenchmark");
+
+    private static String lastSyncs;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory(Paths.get(args.length > 0 ? args[0] : "."), "durability");
+        int sizeMib = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE_MIB;
+
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Writer forced")) {
+                    lastSyncs = record.getMessage();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        try {
+            Path input = dir.resolve("input.bin");
+            writeInput(input, sizeMib);
+            Files.writeString(dir.resolve("table.txt"), "0x41 => 0x42\n0x42 => 0x41\n");
+            Files.writeString(dir.resolve("substitutor.txt"), "table_file = " + dir.resolve("table.txt") + "\n");
+            Files.writeString(dir.resolve("reader.txt"), "buffer_size = 1M\n");
+
+            System.out.println(sizeMib + " MiB in 1 MiB chunks, best and worst of " + RUNS + " runs");
+            for (String[] mode : MODES) {
+                Files.writeString(dir.resolve("writer.txt"), "buffer_size = 1M\n" + mode[1] + "\n");
+                Path config = dir.resolve("config.txt");
+                Files.writeString(config, "input_file = " + input + "\n" +
+                        "output_file = " + dir.resolve("output.bin") + "\n" +
+                        "pipeline = " + FileReader.class.getName() + ", " + dir.resolve("reader.txt") + "; " +
+                        Substitutor.class.getName() + ", " + dir.resolve("substitutor.txt") + "; " +
+                        FileWriter.class.getName() + ", " + dir.resolve("writer.txt") + "\n");
+
+                long best = Long.MAX_VALUE;
+                long worst = 0;
+                for (int run = 0; run < RUNS; ++run) {
+                    PipelineManager manager = PipelineManager.createInstance(config.toString(), logger);
+                    if (manager == null) {
+                        System.out.println(mode[0] + ": invalid config");
+                        return;
+                    }
+
+                    lastSyncs = null;
+                    long start = System.nanoTime();
+                    RC retCode = manager.run();
+                    long elapsed = System.nanoTime() - start;
+                    if (retCode != RC.CODE_SUCCESS) {
+                        System.out.println(mode[0] + ": failed with " + retCode);
+                        return;
+                    }
+                    best = Math.min(best, elapsed);
+                    worst = Math.max(worst, elapsed);
+                }
+                System.out.printf("%-26s %6d-%6d ms  %s%n", mode[0], best / 1_000_000, worst / 1_000_000,
+                        lastSyncs == null ? "" : lastSyncs);
+            }
+        }
+        finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void writeInput(Path input, int sizeMib) throws IOException {
+        Random random = new Random(9);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream stream = Files.newOutputStream(input)) {
+            for (int i = 0; i < sizeMib; ++i) {
+                random.nextBytes(block);
+                stream.write(block);
+            }
+        }
+    }
+}
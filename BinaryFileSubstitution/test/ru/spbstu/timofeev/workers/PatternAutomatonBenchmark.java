@@ -0,0 +1,98 @@
+package ru.spbstu.timofeev.workers;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/*
+ Scanning throughput of PatternAutomaton for dictionaries of up to
+ thousands of patterns, next to the single-byte lookup over the same
+ data. The data is fed in chunks of CHUNK_SIZE bytes as the pipeline
+ does. Random patterns over random bytes mostly keep the automaton in
+ its shallow states, words over text walk the deep ones as well. The
+ largest dictionary stays within the 16-bit state codes. Prints the best
+ of several runs in GB/s.
+ */
+public class PatternAutomatonBenchmark {
+
+    private static final int DATA_SIZE = 64 << 20;
+    private static final int CHUNK_SIZE = 64 << 10;
+    private static final int RUNS = 5;
+
+    private static final byte[] ALPHABET = "etaoin shrdlucmfwypvbgkqjxz".getBytes();
+
+    private static final Logger logger = Logger.getLogger("PatternAutomatonBenchmark");
+
+    public static void main(String[] args) {
+        logger.setUseParentHandlers(false);
+        Random random = new Random(7);
+
+        byte[] binary = new byte[DATA_SIZE];
+        random.nextBytes(binary);
+        byte[] text = new byte[DATA_SIZE];
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+
+        byte[] lut = new byte[256];
+        for (int i = 0; i < 256; ++i) {
+            lut[i] = (byte) (255 - i);
+        }
+        SubstitutionTable table = new SubstitutionTable(lut, SubstitutionTable.Kernel.LOOKUP, logger);
+        System.out.printf("single-byte lookup: random %.2f GB/s, text %.2f GB/s%n",
+                measure(table, binary), measure(table, text));
+
+        System.out.println("patterns  states  dense  random GB/s  text GB/s");
+        for (int count : new int[] {10, 100, 1000, 4000, 6000}) {
+            PatternAutomaton randomPatterns = dictionary(count, false, random);
+            PatternAutomaton words = dictionary(count, true, random);
+            System.out.printf("%8d  %6d  %5d  %11.2f  %9.2f%n", count, randomPatterns.stateCount(),
+                    randomPatterns.denseStateCount(), measure(randomPatterns, binary), measure(words, text));
+        }
+    }
+
+    /*
+     patterns of 4 to 12 bytes, replaced by their first half
+     */
+    private static PatternAutomaton dictionary(int count, boolean words, Random random) {
+        byte[][] patterns = new byte[count][];
+        byte[][] replacements = new byte[count][];
+        for (int p = 0; p < count; ++p) {
+            byte[] pattern = new byte[4 + random.nextInt(9)];
+            for (int i = 0; i < pattern.length; ++i) {
+                pattern[i] = words ? ALPHABET[random.nextInt(ALPHABET.length)] : (byte) random.nextInt(256);
+            }
+            patterns[p] = pattern;
+            replacements[p] = Arrays.copyOf(pattern, pattern.length / 2);
+        }
+        return PatternAutomaton.compile(patterns, replacements);
+    }
+
+    private static double measure(PatternAutomaton automaton, byte[] data) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            PatternAutomaton.Scanner scanner = automaton.newScanner();
+            long start = System.nanoTime();
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                scanner.scan(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+                scanner.clearOutput();
+            }
+            scanner.flush();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) data.length / best;
+    }
+
+    private static double measure(SubstitutionTable table, byte[] data) {
+        byte[] output = new byte[CHUNK_SIZE];
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            long start = System.nanoTime();
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                table.substitute(data, offset, output, 0, Math.min(CHUNK_SIZE, data.length - offset));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) data.length / best;
+    }
+}
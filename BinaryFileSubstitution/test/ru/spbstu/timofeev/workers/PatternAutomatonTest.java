@@ -0,0 +1,221 @@
+package ru.spbstu.timofeev.workers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ Differential test of PatternAutomaton: random dictionaries over small
+ alphabets, so that patterns share prefixes and overlap each other, are
+ compiled with the default dense table and with dense rows for the root
+ only, and the scanner output over random chunk splits, heap arrays and
+ direct buffers has to match a brute-force matcher. main() exits with 1
+ on the first failure.
+ */
+public class PatternAutomatonTest {
+
+    private static final int DICTIONARIES = 300;
+    private static final int INPUTS = 8;
+    private static final int MAX_INPUT = 2000;
+
+    private final Random random = new Random(11);
+    private int checks;
+
+    public static void main(String[] args) {
+        PatternAutomatonTest test = new PatternAutomatonTest();
+        try {
+            test.run();
+        }
+        catch (AssertionError ex) {
+            System.out.println("FAILED: " + ex.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + test.checks + " checks");
+    }
+
+    private void run() {
+        for (int d = 0; d < DICTIONARIES; ++d) {
+            int alphabet = 2 + random.nextInt(5);
+            byte[][] patterns = randomPatterns(1 + random.nextInt(12), alphabet, 1 + random.nextInt(7));
+            checkDictionary(patterns, alphabet, "dictionary " + d);
+        }
+
+        byte[][] large = randomPatterns(3000, 256, 12);
+        checkDictionary(large, 256, "large dictionary");
+        checkDictionary(randomPatterns(3000, 4, 12), 4, "large dictionary over 4 bytes");
+
+        checkLimit();
+    }
+
+    private void checkDictionary(byte[][] patterns, int alphabet, String name) {
+        byte[][] replacements = new byte[patterns.length][];
+        for (int p = 0; p < patterns.length; ++p) {
+            replacements[p] = new byte[random.nextInt(4)];
+            random.nextBytes(replacements[p]);
+        }
+
+        PatternAutomaton automaton = PatternAutomaton.compile(patterns, replacements);
+        PatternAutomaton shallow = PatternAutomaton.compile(patterns, replacements, 0);
+        check(automaton != null && shallow != null, name + ": compile failed");
+        check(shallow.denseStateCount() == 1, name + ": dense rows below the root");
+        check(automaton.stateCount() == shallow.stateCount(), name + ": state counts differ");
+
+        for (int k = 0; k < INPUTS; ++k) {
+            byte[] data = randomInput(random.nextInt(MAX_INPUT), alphabet, patterns);
+            byte[] expected = bruteForce(patterns, replacements, data);
+
+            checkEqual(expected, scanChunks(automaton, data), name + ", random chunks");
+            checkEqual(expected, scanChunks(shallow, data), name + ", root dense only, random chunks");
+            checkEqual(expected, scanBuffers(shallow, data), name + ", root dense only, direct buffers");
+            checkEqual(expected, scanSingleBytes(automaton, data), name + ", single bytes");
+        }
+    }
+
+    /*
+     one pattern per 16-bit code is more than the codes hold
+     */
+    private void checkLimit() {
+        byte[][] patterns = new byte[1 << 16][];
+        for (int p = 0; p < patterns.length; ++p) {
+            patterns[p] = new byte[] {(byte) (p >> 8), (byte) p};
+        }
+        byte[][] replacements = new byte[patterns.length][0];
+        check(PatternAutomaton.compile(patterns, replacements) == null, "too many codes are accepted");
+
+        byte[][] fitting = Arrays.copyOf(patterns, (1 << 16) - 257);
+        check(PatternAutomaton.compile(fitting, Arrays.copyOf(replacements, fitting.length)) != null,
+                "the largest dictionary is refused");
+    }
+
+    /*
+     splits the data at random points, empty chunks included
+     */
+    private byte[] scanChunks(PatternAutomaton automaton, byte[] data) {
+        PatternAutomaton.Scanner scanner = automaton.newScanner();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, random.nextInt(4) == 0 ? 0 : random.nextInt(40));
+            scanner.scan(data, offset, length);
+            drain(scanner, output);
+            offset += length;
+        }
+        scanner.flush();
+        drain(scanner, output);
+        return output.toByteArray();
+    }
+
+    private byte[] scanBuffers(PatternAutomaton automaton, byte[] data) {
+        PatternAutomaton.Scanner scanner = automaton.newScanner();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, random.nextInt(50));
+            int position = random.nextInt(64 - length + 1);
+            buffer.clear().position(position);
+            buffer.put(data, offset, length).flip().position(position);
+            scanner.scan(buffer);
+            check(buffer.position() == position, "scan moved the buffer position");
+            drain(scanner, output);
+            offset += length;
+        }
+        scanner.flush();
+        drain(scanner, output);
+        return output.toByteArray();
+    }
+
+    private static byte[] scanSingleBytes(PatternAutomaton automaton, byte[] data) {
+        PatternAutomaton.Scanner scanner = automaton.newScanner();
+        for (int i = 0; i < data.length; ++i) {
+            scanner.scan(data, i, 1);
+        }
+        scanner.flush();
+        return Arrays.copyOf(scanner.output(), scanner.outputLength());
+    }
+
+    private static void drain(PatternAutomaton.Scanner scanner, ByteArrayOutputStream output) {
+        output.write(scanner.output(), 0, scanner.outputLength());
+        scanner.clearOutput();
+    }
+
+    /*
+     from the restart point, the first byte that ends a pattern starting
+     at or after it is replaced with the longest such pattern, the last
+     of equal patterns wins as in compile()
+     */
+    private static byte[] bruteForce(byte[][] patterns, byte[][] replacements, byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int restart = 0;
+        for (int end = 1; end <= data.length; ++end) {
+            int best = -1;
+            for (int p = 0; p < patterns.length; ++p) {
+                int start = end - patterns[p].length;
+                if (start >= restart && Arrays.equals(data, start, end, patterns[p], 0, patterns[p].length) &&
+                        (best < 0 || patterns[p].length >= patterns[best].length)) {
+                    best = p;
+                }
+            }
+            if (best >= 0) {
+                output.write(data, restart, end - patterns[best].length - restart);
+                output.write(replacements[best], 0, replacements[best].length);
+                restart = end;
+            }
+        }
+        output.write(data, restart, data.length - restart);
+        return output.toByteArray();
+    }
+
+    private byte[][] randomPatterns(int count, int alphabet, int maxLength) {
+        byte[][] patterns = new byte[count][];
+        for (int p = 0; p < count; ++p) {
+            patterns[p] = new byte[1 + random.nextInt(maxLength)];
+            for (int i = 0; i < patterns[p].length; ++i) {
+                patterns[p][i] = (byte) random.nextInt(alphabet);
+            }
+        }
+        return patterns;
+    }
+
+    /*
+     random bytes of the alphabet with whole patterns and bytes
+     outside of it mixed in
+     */
+    private byte[] randomInput(int length, int alphabet, byte[][] patterns) {
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int choice = random.nextInt(8);
+            if (choice == 0) {
+                byte[] pattern = patterns[random.nextInt(patterns.length)];
+                int copied = Math.min(pattern.length, length - i);
+                System.arraycopy(pattern, 0, data, i, copied);
+                i += copied;
+            }
+            else if (choice == 1) {
+                data[i++] = (byte) random.nextInt(256);
+            }
+            else {
+                data[i++] = (byte) random.nextInt(alphabet);
+            }
+        }
+        return data;
+    }
+
+    private void checkEqual(byte[] expected, byte[] actual, String name) {
+        ++checks;
+        if (!Arrays.equals(expected, actual)) {
+            int i = Arrays.mismatch(expected, actual);
+            throw new AssertionError(name + ": output differs at byte " + i + ", " +
+                    actual.length + " bytes instead of " + expected.length);
+        }
+    }
+
+    private void check(boolean condition, String message) {
+        ++checks;
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
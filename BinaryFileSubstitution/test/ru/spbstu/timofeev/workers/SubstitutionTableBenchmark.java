@@ -0,0 +1,97 @@
+package ru.spbstu.timofeev.workers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/*
+ Throughput of every substitution kernel for tables from a single entry
+ to a full permutation, in place over 64 MiB of random bytes and of
+ ASCII text. Prints the best of several runs in GB/s. Run it with
+ --add-modules jdk.incubator.vector to include the vector kernels.
+ */
+public class SubstitutionTableBenchmark {
+
+    private static final int DATA_SIZE = 64 << 20;
+    private static final int RUNS = 12;
+
+    private static final Logger logger = Logger.getLogger("SubstitutionTableBenchmark");
+
+    public static void main(String[] args) {
+        logger.setUseParentHandlers(false);
+        Random random = new Random(5);
+
+        byte[] binary = new byte[DATA_SIZE];
+        random.nextBytes(binary);
+        byte[] text = new byte[DATA_SIZE];
+        byte[] alphabet = "etaoin shrdlu\ncmfwypvbgkqjxz,.ETAOINSHR0123456789".getBytes();
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+
+        System.out.println("entries  kernel          random GB/s  text GB/s");
+        for (int entries : new int[] {1, 2, 3, 4, 6, 16, 256}) {
+            byte[] lut = table(entries, text, random);
+            for (SubstitutionTable.Kernel kernel : kernels()) {
+                SubstitutionTable table = new SubstitutionTable(lut, kernel, logger);
+                System.out.printf("%7d  %-14s  %11.2f  %9.2f%n", entries, kernel,
+                        measure(table, binary), measure(table, text));
+            }
+        }
+    }
+
+    private static List<SubstitutionTable.Kernel> kernels() {
+        List<SubstitutionTable.Kernel> kernels = new ArrayList<>();
+        kernels.add(SubstitutionTable.Kernel.SPARSE_SWAR);
+        kernels.add(SubstitutionTable.Kernel.LOOKUP);
+        if (SubstitutionTable.hasVectorKernels()) {
+            kernels.add(SubstitutionTable.Kernel.SPARSE_VECTOR);
+            kernels.add(SubstitutionTable.Kernel.LOOKUP_VECTOR);
+        }
+        return kernels;
+    }
+
+    /*
+     the keys are taken from the text, so they occur in both inputs
+     like the letters of table.txt do
+     */
+    private static byte[] table(int entries, byte[] text, Random random) {
+        byte[] lut = new byte[256];
+        for (int i = 0; i < 256; ++i) {
+            lut[i] = (byte) i;
+        }
+        if (entries == 256) {
+            for (int i = 255; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                byte swap = lut[i];
+                lut[i] = lut[j];
+                lut[j] = swap;
+            }
+            return lut;
+        }
+
+        int mapped = 0;
+        while (mapped < entries) {
+            int key = text[random.nextInt(text.length)] & 0xFF;
+            if (mapped >= 8) {
+                key = random.nextInt(256);
+            }
+            if (lut[key] == (byte) key) {
+                lut[key] = (byte) (key ^ 0x20);
+                ++mapped;
+            }
+        }
+        return lut;
+    }
+
+    private static double measure(SubstitutionTable table, byte[] data) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; ++run) {
+            long start = System.nanoTime();
+            table.substitute(data, 0, data.length);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) data.length / best;
+    }
+}
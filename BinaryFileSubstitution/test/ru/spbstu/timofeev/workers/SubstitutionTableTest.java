@@ -0,0 +1,298 @@
+package ru.spbstu.timofeev.workers;
+
+import ru.spbstu.pipeline.RC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/*
+ Differential test of the substitution kernels: every kernel that suits a
+ table is run over random data at odd offsets and lengths, in place and
+ out of place, on heap arrays and on heap and direct buffers, and has to
+ give the bytes of the per-byte Substitute(byte). Run it once with
+ --add-modules jdk.incubator.vector to cover the vector kernels and once
+ without, main() exits with 1 on the first failure.
+ */
+public class SubstitutionTableTest {
+
+    private static final int MAX_OFFSET = 9;
+    private static final int MAX_LENGTH = 300;
+    private static final int LONG_LENGTH = 10_007;
+
+    private static final Logger logger = Logger.getLogger("SubstitutionTableTest");
+
+    private final Random random = new Random(3);
+    private int checks;
+
+    public static void main(String[] args) {
+        logger.setUseParentHandlers(false);
+
+        SubstitutionTableTest test = new SubstitutionTableTest();
+        try {
+            test.run();
+        }
+        catch (AssertionError | IOException ex) {
+            System.out.println("FAILED: " + ex.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + test.checks + " checks, vector kernels " +
+                (SubstitutionTable.hasVectorKernels() ? "on" : "off"));
+    }
+
+    private void run() throws IOException {
+        checkTable(identityTable());
+        for (int entries : new int[] {1, 2, 3, 4, 6, 16, 64}) {
+            checkTable(sparseTable(entries));
+        }
+        checkTable(permutationTable());
+
+        checkShortCompose();
+    }
+
+    private void checkTable(byte[] lut) {
+        for (SubstitutionTable.Kernel kernel : kernelsFor(lut)) {
+            SubstitutionTable table = new SubstitutionTable(lut.clone(), kernel, logger);
+            String name = kernel + " with " + countMapped(lut) + " entries";
+
+            for (int offset = 0; offset <= MAX_OFFSET; ++offset) {
+                for (int length = 0; length <= MAX_LENGTH; length += 1 + random.nextInt(7)) {
+                    checkArrays(table, name, offset, length);
+                    checkBuffers(table, name, offset, length);
+                }
+                checkArrays(table, name, offset, LONG_LENGTH);
+                checkBuffers(table, name, offset, LONG_LENGTH);
+            }
+        }
+    }
+
+    /*
+     16-bit tables in the same byte order compose into a table that
+     substitutes shorts and chars like the two one after the other,
+     tables in different orders are not composed
+     */
+    private void checkShortCompose() throws IOException {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            SubstitutionTable first = shortTable(order);
+            SubstitutionTable second = shortTable(order);
+            SubstitutionTable composed = first.compose(second);
+            String name = "composed 16-bit tables in " + order;
+            check(composed != null, name, "not composed");
+
+            short[] shorts = new short[LONG_LENGTH];
+            for (int i = 0; i < shorts.length; ++i) {
+                shorts[i] = (short) random.nextInt(1 << 16);
+            }
+            short[] expected = shorts.clone();
+            first.substitute(expected, 0, expected.length);
+            second.substitute(expected, 0, expected.length);
+            composed.substitute(shorts, 0, shorts.length);
+            check(Arrays.equals(expected, shorts), name, "shorts differ");
+
+            CharBuffer chars = CharBuffer.allocate(LONG_LENGTH);
+            for (int i = 0; i < LONG_LENGTH; ++i) {
+                chars.put(i, (char) random.nextInt(1 << 16));
+            }
+            CharBuffer expectedChars = CharBuffer.allocate(LONG_LENGTH).put(0, chars, 0, LONG_LENGTH);
+            first.substitute(expectedChars);
+            second.substitute(expectedChars);
+            composed.substitute(chars);
+            check(expectedChars.equals(chars), name, "chars differ");
+        }
+
+        SubstitutionTable bigEndian = shortTable(ByteOrder.BIG_ENDIAN);
+        SubstitutionTable littleEndian = shortTable(ByteOrder.LITTLE_ENDIAN);
+        check(!bigEndian.canCompose(littleEndian) && !littleEndian.canCompose(bigEndian),
+                "16-bit tables in mixed byte orders", "composable");
+        check(bigEndian.compose(littleEndian) == null && littleEndian.compose(bigEndian) == null,
+                "16-bit tables in mixed byte orders", "composed");
+    }
+
+    /*
+     a random cycle over a few 16-bit keys, read from a table file
+     */
+    private SubstitutionTable shortTable(ByteOrder order) throws IOException {
+        int[] keys = random.ints(0, 1 << 16).distinct().limit(2 + random.nextInt(30)).toArray();
+        StringBuilder text = new StringBuilder();
+        for (int k = 0; k < keys.length; ++k) {
+            text.append(String.format("0x%04x => 0x%04x%n", keys[k], keys[(k + 1) % keys.length]));
+        }
+
+        Path file = Files.createTempFile("table", ".txt");
+        try {
+            Files.writeString(file, text);
+            SubstitutionTable table = SubstitutionTable.fromFile(file.toString(), order, logger).first;
+            check(table != null, "16-bit table in " + order, "not read");
+            return table;
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<SubstitutionTable.Kernel> kernelsFor(byte[] lut) {
+        List<SubstitutionTable.Kernel> kernels = new ArrayList<>();
+        if (countMapped(lut) == 0) {
+            kernels.add(SubstitutionTable.Kernel.IDENTITY);
+            return kernels;
+        }
+
+        kernels.add(SubstitutionTable.Kernel.SPARSE_SWAR);
+        kernels.add(SubstitutionTable.Kernel.LOOKUP);
+        if (SubstitutionTable.hasVectorKernels()) {
+            kernels.add(SubstitutionTable.Kernel.SPARSE_VECTOR);
+            kernels.add(SubstitutionTable.Kernel.LOOKUP_VECTOR);
+        }
+        return kernels;
+    }
+
+    private void checkArrays(SubstitutionTable table, String name, int offset, int length) {
+        byte[] data = randomData(offset + length + MAX_OFFSET, table);
+        byte[] expected = expected(table, data, offset, length);
+
+        byte[] inPlace = data.clone();
+        check(table.substitute(inPlace, offset, length) == RC.CODE_SUCCESS, name, "in place call failed");
+        checkEqual(expected, inPlace, name + ", in place, offset " + offset + ", length " + length);
+
+        int dstOffset = (offset * 5 + 3) % (MAX_OFFSET + 1);
+        byte[] dst = new byte[dstOffset + length + MAX_OFFSET];
+        random.nextBytes(dst);
+        byte[] expectedDst = dst.clone();
+        System.arraycopy(expected, offset, expectedDst, dstOffset, length);
+        check(table.substitute(data.clone(), offset, dst, dstOffset, length) == RC.CODE_SUCCESS,
+                name, "out of place call failed");
+        checkEqual(expectedDst, dst, name + ", out of place, offset " + offset + ", length " + length);
+    }
+
+    private void checkBuffers(SubstitutionTable table, String name, int offset, int length) {
+        byte[] data = randomData(offset + length + MAX_OFFSET, table);
+        byte[] expected = expected(table, data, offset, length);
+
+        ByteBuffer heap = ByteBuffer.wrap(data.clone());
+        checkBuffer(table, heap, expected, offset, length, name + ", heap buffer");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).clear();
+        checkBuffer(table, direct, expected, offset, length, name + ", direct buffer");
+
+        ByteBuffer sliced = ByteBuffer.allocateDirect(data.length + 1).position(1).slice();
+        sliced.put(data).clear();
+        checkBuffer(table, sliced.order(ByteOrder.LITTLE_ENDIAN), expected, offset, length,
+                name + ", unaligned direct buffer");
+    }
+
+    private void checkBuffer(SubstitutionTable table, ByteBuffer buffer, byte[] expected,
+                             int offset, int length, String name) {
+        ByteOrder order = buffer.order();
+        buffer.position(offset).limit(offset + length);
+
+        check(table.substitute(buffer) == RC.CODE_SUCCESS, name, "call failed");
+        check(buffer.position() == offset && buffer.limit() == offset + length, name, "position or limit moved");
+        check(buffer.order() == order, name, "byte order changed");
+
+        byte[] actual = new byte[buffer.capacity()];
+        buffer.clear().get(actual);
+        checkEqual(expected, actual, name + ", offset " + offset + ", length " + length);
+    }
+
+    /*
+     random bytes with the mapped keys frequent enough
+     to hit every word of the kernels
+     */
+    private byte[] randomData(int length, SubstitutionTable table) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        List<Byte> keys = new ArrayList<>();
+        for (int i = 0; i < 256; ++i) {
+            if (table.Substitute((byte) i) != (byte) i) {
+                keys.add((byte) i);
+            }
+        }
+        for (int i = 0; i < length && !keys.isEmpty(); ++i) {
+            if (random.nextInt(16) == 0) {
+                data[i] = keys.get(random.nextInt(keys.size()));
+            }
+        }
+        return data;
+    }
+
+    private static byte[] expected(SubstitutionTable table, byte[] data, int offset, int length) {
+        byte[] expected = data.clone();
+        for (int i = offset; i < offset + length; ++i) {
+            expected[i] = table.Substitute(data[i]);
+        }
+        return expected;
+    }
+
+    private void checkEqual(byte[] expected, byte[] actual, String name) {
+        ++checks;
+        for (int i = 0; i < expected.length; ++i) {
+            if (expected[i] != actual[i]) {
+                throw new AssertionError(name + ": byte " + i + " is " + actual[i] + " instead of " + expected[i]);
+            }
+        }
+    }
+
+    private void check(boolean condition, String name, String message) {
+        ++checks;
+        if (!condition) {
+            throw new AssertionError(name + ": " + message);
+        }
+    }
+
+    private static byte[] identityTable() {
+        byte[] lut = new byte[256];
+        for (int i = 0; i < 256; ++i) {
+            lut[i] = (byte) i;
+        }
+        return lut;
+    }
+
+    /*
+     maps the given number of random keys to other values, the kernels
+     do not need the table to be a permutation
+     */
+    private byte[] sparseTable(int entries) {
+        byte[] lut = identityTable();
+        int mapped = 0;
+        while (mapped < entries) {
+            int key = random.nextInt(256);
+            if (lut[key] != (byte) key) {
+                continue;
+            }
+            lut[key] = (byte) (key + 1 + random.nextInt(255));
+            ++mapped;
+        }
+        return lut;
+    }
+
+    private byte[] permutationTable() {
+        byte[] lut = identityTable();
+        for (int i = 255; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            byte swap = lut[i];
+            lut[i] = lut[j];
+            lut[j] = swap;
+        }
+        return lut;
+    }
+
+    private static int countMapped(byte[] lut) {
+        int mapped = 0;
+        for (int i = 0; i < 256; ++i) {
+            if (lut[i] != (byte) i) {
+                ++mapped;
+            }
+        }
+        return mapped;
+    }
+}